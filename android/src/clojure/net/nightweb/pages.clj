@@ -95,11 +95,15 @@
       (views/create-tab action-bar
                         (r/get-string :users)
                         #(views/get-category-view
-                           this (assoc params :subtype :user)))
+                           this (-> params
+                                    (dissoc :page :cursor)
+                                    (assoc :subtype :user))))
       (views/create-tab action-bar
                         (r/get-string :posts)
                         #(views/get-category-view
-                           this (assoc params :subtype :post)))))
+                           this (-> params
+                                    (dissoc :page :cursor)
+                                    (assoc :subtype :post))))))
   :on-destroy
   (fn [^Activity this]
     (service/stop-receiver this main/shutdown-receiver-name))
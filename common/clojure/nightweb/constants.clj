@@ -20,6 +20,7 @@
 
 (def ^:const torrent-ext ".torrent")
 (def ^:const link-ext ".link")
+(def ^:const manifest-ext ".manifest")
 
 (def ^:const user-list-file "user.list")
 (def ^:const priv-node-key-file "private.node.key")
@@ -77,6 +78,11 @@
   (.getCanonicalPath
     (java.io/file (get-user-dir user-hash) (str meta-dir link-ext))))
 
+(defn get-meta-manifest-file
+  [user-hash]
+  (.getCanonicalPath
+    (java.io/file (get-user-dir user-hash) (str meta-dir manifest-ext))))
+
 (defn get-post-dir
   [user-hash]
   (.getCanonicalPath (java.io/file (get-meta-dir user-hash) post-dir)))
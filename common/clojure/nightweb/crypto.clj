@@ -1,5 +1,8 @@
 (ns nightweb.crypto
-  (:import [java.security MessageDigest]
+  (:require [nightweb.pipeline :as p])
+  (:import [java.nio ByteBuffer]
+           [java.security MessageDigest]
+           [java.util Collections LinkedHashMap Map]
            [net.i2p I2PAppContext]
            [net.i2p.crypto DSAEngine]
            [net.i2p.data Signature SigningPrivateKey SigningPublicKey]))
@@ -7,6 +10,8 @@
 (def priv-key (atom nil))
 (def pub-key (atom nil))
 
+(def ^:const key-cache-size 256)
+
 (defn gen-priv-key
   []
   (let [context (I2PAppContext/getGlobalContext)
@@ -26,7 +31,7 @@
   (MessageDigest/getInstance "SHA1"))
 
 (defn create-hash
-  [data-barray]
+  [^bytes data-barray]
   (let [^MessageDigest algo (get-hash-algo)]
     (.digest algo data-barray)))
 
@@ -41,6 +46,24 @@
               ^SigningPrivateKey (SigningPrivateKey. priv-key-bytes))
        (.getData))))
 
+; verification
+
+(def ^Map key-cache
+  (Collections/synchronizedMap
+    (proxy [LinkedHashMap] [16 0.75 true]
+      (removeEldestEntry [entry]
+        (> (.size ^LinkedHashMap this) key-cache-size)))))
+
+(defn get-signing-key
+  "Returns the SigningPublicKey for the given bytes, reusing the one we made
+  the last time this signer was verified."
+  [^bytes pub-key-bytes]
+  (let [k (ByteBuffer/wrap pub-key-bytes)]
+    (or (.get key-cache k)
+        (let [signing-key (SigningPublicKey. pub-key-bytes)]
+          (.put key-cache k signing-key)
+          signing-key))))
+
 (defn verify-signature
   [^bytes pub-key-bytes ^bytes sig-bytes ^bytes message-bytes]
   (when (and pub-key-bytes sig-bytes message-bytes)
@@ -49,4 +72,51 @@
                       message-bytes
                       0
                       (alength message-bytes)
-                      (SigningPublicKey. pub-key-bytes))))
+                      ^SigningPublicKey (get-signing-key pub-key-bytes))))
+
+(def verify-count (atom {:count 0 :start-time (System/currentTimeMillis)}))
+
+(defn add-verify-stat
+  "Counts a verification and records how many were done per second once at
+  least a second has gone by."
+  []
+  (let [now (System/currentTimeMillis)
+        per-second (locking verify-count
+                     (let [{:keys [count start-time]} @verify-count
+                           elapsed (- now start-time)]
+                       (if (>= elapsed 1000)
+                         (do (reset! verify-count {:count 0 :start-time now})
+                             (quot (* (inc count) 1000) elapsed))
+                         (do (swap! verify-count update-in [:count] inc)
+                             nil))))]
+    (when per-second
+      (p/add-stat "nightweb.verify.perSecond" per-second))))
+
+(def verify-stage
+  (delay
+    (.createRequiredRateStat (.statManager (I2PAppContext/getGlobalContext))
+                             "nightweb.verify.perSecond"
+                             "How many signatures are verified per second?"
+                             "Nightweb"
+                             (long-array [(* 60 1000) (* 60 60 1000)]))
+    (.createRequiredRateStat (.statManager (I2PAppContext/getGlobalContext))
+                             "nightweb.verify.dropped"
+                             "How many verifications are dropped when busy?"
+                             "Nightweb"
+                             (long-array [(* 60 1000) (* 60 60 1000)]))
+    (p/create-stage "verify" (.availableProcessors (Runtime/getRuntime)))))
+
+(defn verify-signature-later
+  "Verifies a signature on the verify stage and calls callback with the
+  result. Signatures submitted together are verified in parallel. Returns
+  false without waiting, and never calls callback, if the stage is full."
+  [pub-key-bytes sig-bytes message-bytes callback]
+  (or (p/try-submit @verify-stage
+                    (fn []
+                      (let [valid? (verify-signature pub-key-bytes
+                                                     sig-bytes
+                                                     message-bytes)]
+                        (add-verify-stat)
+                        (callback valid?))))
+      (do (p/add-stat "nightweb.verify.dropped" 1)
+          false)))
@@ -1,29 +1,193 @@
 (ns nightweb.db
-  (:require [clojure.java.io :as java.io]
+  (:require [clojure.core.protocols :as protocols]
+            [clojure.java.io :as java.io]
             [clojure.java.jdbc :as jdbc]
             [nightweb.constants :as c]
-            [nightweb.formats :as f]))
+            [nightweb.formats :as f])
+  (:import [java.sql Connection PreparedStatement SQLException]
+           [java.util Collections LinkedHashMap Map]
+           [java.util.concurrent LinkedBlockingQueue Semaphore TimeUnit]
+           [javax.sql ConnectionEventListener PooledConnection]
+           [net.i2p I2PAppContext]
+           [org.h2.jdbcx JdbcDataSource]))
 
 (def spec (atom nil))
+(def pool (atom nil))
+(def ^:const default-pool-size 4)
+(def ^:const borrow-timeout 30000)
+(def ^:const validate-timeout 1)
 (def ^:const limit 24)
+(def ^:const cache-size 1000)
 (def ^:const max-length-small 20)
 (def ^:const max-length-large 10000)
 
+(def user-sort-key ["user.time" "user.userhash" f/base32-decode])
+(def post-sort-key ["post.time" "post.userhash" f/base32-decode])
+(def fav-sort-key ["fav.mtime" "fav.id" f/long-decode])
+(def tag-sort-key ["tagcount.count" "tagcount.title" identity])
+
 (defn paginate
   [page statement]
   (format (str statement " LIMIT %d OFFSET %d")
           (+ limit 1)
           (* limit (if page (- page 1) 0))))
 
+(defn seek
+  "Pages through a statement by seeking past the sort key stored in the
+  :cursor param, so later pages cost the same as the first one. The
+  statement must end with ORDER BY time-col DESC, id-col DESC. Falls back
+  to an offset when there is no cursor or sort key."
+  [params sort-key [sql & args]]
+  (let [[time-col id-col decode-id] sort-key
+        [time-str id-str] (when-let [cursor (:cursor params)]
+                            (clojure.string/split cursor #"\." 2))
+        cursor-time (f/long-decode time-str)
+        cursor-id (when (and id-str decode-id) (decode-id id-str))]
+    (if sort-key
+      (let [sql (clojure.string/replace-first
+                  sql
+                  "SELECT "
+                  (format "SELECT %s AS pagetime, %s AS pageid, "
+                          time-col id-col))
+            order-index (.lastIndexOf sql "ORDER BY")]
+        (if (and cursor-time cursor-id)
+          (vec (concat [(format "%s %s %s <= ? AND (%s < ? OR %s < ?) %s LIMIT %d"
+                                (subs sql 0 order-index)
+                                (if (.contains sql "WHERE") "AND" "WHERE")
+                                time-col time-col id-col
+                                (subs sql order-index)
+                                (+ limit 1))]
+                       args
+                       [cursor-time cursor-time cursor-id]))
+          (vec (cons (paginate (:page params) sql) args))))
+      (vec (cons (paginate (:page params) sql) args)))))
+
+(defn add-cursor
+  "Replaces the sort key columns selected by seek with a cursor string."
+  [row]
+  (if (contains? row :pagetime)
+    (let [id (:pageid row)]
+      (-> row
+          (assoc :cursor (str (:pagetime row) "."
+                              (if (or (number? id) (string? id))
+                                id
+                                (f/base32-encode id))))
+          (dissoc :pagetime :pageid)))
+    row))
+
+(defn prepare-row
+  "Tags a row with its table and escapes its text. When columns are given,
+  only those (plus the type and cursor) are kept."
+  [table columns row]
+  (let [row (add-cursor row)
+        row (if columns (select-keys row (conj columns :cursor)) row)]
+    (cond-> (assoc row :type table)
+      (or (nil? columns) (contains? row :title))
+      (assoc :title (f/escape-html (:title row)))
+      (or (nil? columns) (contains? row :body))
+      (assoc :body (f/escape-html (:body row))))))
+
 (defn prepare-results
-  [rs table]
-  (->> (for [row rs]
-         (into {} (assoc row
-                         :type table
-                         :title (f/escape-html (:title row))
-                         :body (f/escape-html (:body row)))))
-       (doall)
-       (vec)))
+  ([rs table] (prepare-results rs table nil))
+  ([rs table columns]
+   (persistent! (reduce #(conj! %1 (prepare-row table columns %2))
+                        (transient [])
+                        rs))))
+
+; connection pool
+
+(defn add-stat
+  [stat-name value]
+  (-> (I2PAppContext/getGlobalContext)
+      .statManager
+      (.addRateData stat-name value)))
+
+(defn create-stats
+  []
+  (let [stats (.statManager (I2PAppContext/getGlobalContext))
+        periods (long-array [(* 60 1000) (* 60 60 1000)])]
+    (.createRequiredRateStat stats
+                             "nightweb.db.openTime"
+                             "How long does it take to open a connection?"
+                             "Nightweb"
+                             periods)
+    (.createRequiredRateStat stats
+                             "nightweb.db.borrowTime"
+                             "How long do we wait for a pooled connection?"
+                             "Nightweb"
+                             periods)
+    (.createRequiredRateStat stats
+                             "nightweb.db.cacheHit"
+                             "How many reads are served from the cache?"
+                             "Nightweb"
+                             periods)
+    (.createRequiredRateStat stats
+                             "nightweb.db.cacheMiss"
+                             "How many reads have to query the database?"
+                             "Nightweb"
+                             periods)))
+
+(defn create-pool
+  [url pool-size]
+  {:datasource (doto (JdbcDataSource.) (.setURL url))
+   :idle (LinkedBlockingQueue.)
+   :permits (Semaphore. pool-size true)})
+
+(defn open-pooled-connection
+  "Opens a physical connection that returns itself to the pool when closed."
+  [{:keys [^JdbcDataSource datasource ^LinkedBlockingQueue idle] :as pool}]
+  (let [start-time (System/currentTimeMillis)
+        ^PooledConnection pc (.getPooledConnection datasource)]
+    (.addConnectionEventListener
+      pc
+      (reify ConnectionEventListener
+        (connectionClosed [this event]
+          (.offer idle pc)
+          (.release ^Semaphore (:permits pool)))
+        (connectionErrorOccurred [this event])))
+    (add-stat "nightweb.db.openTime" (- (System/currentTimeMillis) start-time))
+    pc))
+
+(defn get-valid-connection
+  "Takes an idle connection from the pool, discarding any that fail
+  validation, or opens a new one if none are left."
+  [{:keys [^LinkedBlockingQueue idle] :as pool}]
+  (if-let [^PooledConnection pc (.poll idle)]
+    (if-let [^Connection conn (try
+                                (let [conn (.getConnection pc)]
+                                  (when (.isValid conn validate-timeout)
+                                    conn))
+                                (catch SQLException e nil))]
+      conn
+      (do
+        (try (.close pc) (catch SQLException e nil))
+        (recur pool)))
+    (.getConnection ^PooledConnection (open-pooled-connection pool))))
+
+(defn borrow-connection
+  "Checks out a connection from the pool, blocking while all are in use.
+  Used as the :factory of the db spec so closing it returns it to the pool."
+  [params]
+  (let [{:keys [^Semaphore permits] :as pool} @pool
+        start-time (System/currentTimeMillis)]
+    (when-not (.tryAcquire permits borrow-timeout TimeUnit/MILLISECONDS)
+      (throw (SQLException. "Timed out waiting for a database connection")))
+    (try
+      (let [conn (get-valid-connection pool)]
+        (add-stat "nightweb.db.borrowTime"
+                  (- (System/currentTimeMillis) start-time))
+        conn)
+      (catch Exception e
+        (.release permits)
+        (throw e)))))
+
+(defmacro with-connection
+  "Evaluates body with a pooled connection, reusing the one this thread
+  already holds if we are nested inside another database call."
+  [& body]
+  `(if (jdbc/find-connection)
+     (do ~@body)
+     (jdbc/with-connection @spec ~@body)))
 
 ; initialization
 
@@ -31,8 +195,7 @@
   ([table-name] (check-table table-name "*"))
   ([table-name column-name]
    (try
-     (jdbc/with-connection
-       @spec
+     (with-connection
        (jdbc/with-query-results
          rs
          [(str "SELECT COUNT(" (name column-name) ") FROM " (name table-name))]
@@ -67,78 +230,192 @@
 (defn create-tables
   []
   (when-not (check-table :user)
-    (jdbc/with-connection
-      @spec
+    (with-connection
       (create-generic-table :user)
       (create-index "USER" ["ID" "TITLE" "BODY"])))
   (when-not (check-table :post)
-    (jdbc/with-connection
-      @spec
+    (with-connection
       (create-generic-table :post)
       (create-index "POST" ["ID" "TITLE" "BODY"])))
   (when-not (check-table :pic)
-    (jdbc/with-connection
-      @spec
+    (with-connection
       (create-generic-table :pic)))
   (when-not (check-table :fav)
-    (jdbc/with-connection
-      @spec
+    (with-connection
       (create-generic-table :fav)))
   (when-not (check-table :tag)
-    (jdbc/with-connection
-      @spec
+    (with-connection
       (create-generic-table :tag))))
 
+(def migrations
+  "Each entry is the list of commands that upgrades the schema by one version."
+  [; version 1: indexes for the feed queries
+   ["CREATE INDEX IF NOT EXISTS user_userhash ON user(userhash)"
+    "CREATE INDEX IF NOT EXISTS user_time ON user(time DESC)"
+    "CREATE INDEX IF NOT EXISTS post_userhash_time ON post(userhash, time DESC)"
+    "CREATE INDEX IF NOT EXISTS post_time ON post(time DESC)"
+    "CREATE INDEX IF NOT EXISTS pic_userhash_ptrtime ON pic(userhash, ptrtime)"
+    "CREATE INDEX IF NOT EXISTS fav_userhash_ptrhash_ptrtime
+    ON fav(userhash, ptrhash, ptrtime)"
+    "CREATE INDEX IF NOT EXISTS fav_userhash_mtime ON fav(userhash, mtime DESC)"
+    "CREATE INDEX IF NOT EXISTS fav_ptrhash_status ON fav(ptrhash, status)"
+    "CREATE INDEX IF NOT EXISTS tag_title_ptrtime ON tag(title, ptrtime)"
+    "CREATE INDEX IF NOT EXISTS tag_userhash_ptrtime ON tag(userhash, ptrtime)"]
+   ; version 2: include the tie-breaking column of each seek sort key
+   ["DROP INDEX IF EXISTS user_time"
+    "CREATE INDEX IF NOT EXISTS user_time_userhash
+    ON user(time DESC, userhash DESC)"
+    "DROP INDEX IF EXISTS post_time"
+    "CREATE INDEX IF NOT EXISTS post_time_userhash
+    ON post(time DESC, userhash DESC)"
+    "DROP INDEX IF EXISTS fav_userhash_mtime"
+    "CREATE INDEX IF NOT EXISTS fav_userhash_mtime_id
+    ON fav(userhash, mtime DESC, id DESC)"]
+   ; version 3: tag counts maintained as tags are inserted and removed
+   ["CREATE TABLE IF NOT EXISTS tagcount
+    (title VARCHAR, post BOOLEAN, count BIGINT, PRIMARY KEY (title, post))"
+    "INSERT INTO tagcount
+    SELECT title, ptrtime IS NOT NULL, COUNT(*) FROM tag
+    GROUP BY title, ptrtime IS NOT NULL"
+    "CREATE INDEX IF NOT EXISTS tagcount_post_count
+    ON tagcount(post DESC, count DESC, title DESC)"]])
+
+(defn get-schema-version
+  []
+  (with-connection
+    (jdbc/do-commands
+      "CREATE TABLE IF NOT EXISTS schema_version (version BIGINT)")
+    (jdbc/with-query-results
+      rs
+      ["SELECT MAX(version) AS version FROM schema_version"]
+      (or (:version (first rs)) 0))))
+
+(defn migrate-tables
+  []
+  (with-connection
+    (doseq [[version commands] (->> migrations
+                                    (map vector (iterate inc 1))
+                                    (drop (get-schema-version)))]
+      (apply jdbc/do-commands commands)
+      (jdbc/insert-values :schema_version [:version] [version]))))
+
 (defn init-db
-  [base-dir]
-  (when (nil? @spec)
-    (reset! spec
-            {:classname "org.h2.Driver"
-             :subprotocol "h2"
-             :subname (-> (java.io/file base-dir c/nw-dir c/db-file)
-                          .getCanonicalPath)})
-    (create-tables)))
+  ([base-dir] (init-db base-dir default-pool-size))
+  ([base-dir pool-size]
+   (when (nil? @spec)
+     (create-stats)
+     (reset! pool
+             (create-pool (str "jdbc:h2:"
+                               (-> (java.io/file base-dir c/nw-dir c/db-file)
+                                   .getCanonicalPath))
+                          pool-size))
+     (reset! spec {:factory borrow-connection})
+     (create-tables)
+     (migrate-tables))))
+
+; result cache
+
+(def ^Map cache
+  (Collections/synchronizedMap
+    (proxy [LinkedHashMap] [16 0.75 true]
+      (removeEldestEntry [entry]
+        (> (.size ^LinkedHashMap this) cache-size)))))
+(def cache-generation (atom 0))
+
+(defn cache-key
+  "Builds a key whose first element is the owning user hash and whose byte
+  arrays compare by value."
+  [user-hash & args]
+  (vec (for [arg (cons user-hash args)]
+         (if (instance? (Class/forName "[B") arg) (f/base32-encode arg) arg))))
+
+(defmacro with-cache
+  "Returns the cached result for k, or evaluates body and caches it unless
+  the cache was invalidated in the meantime."
+  [k & body]
+  `(let [k# ~k
+         generation# @cache-generation]
+     (if-let [[result#] (.get cache k#)]
+       (do (add-stat "nightweb.db.cacheHit" 1)
+           result#)
+       (let [result# (do ~@body)]
+         (add-stat "nightweb.db.cacheMiss" 1)
+         (locking cache
+           (when (= generation# @cache-generation)
+             (.put cache k# [result#])))
+         result#))))
+
+(defn invalidate-cache
+  "Drops the cached reads owned by user-hash along with the ones that span
+  all users."
+  [user-hash]
+  (let [user-key (first (cache-key user-hash))]
+    (locking cache
+      (swap! cache-generation inc)
+      (let [iter (.iterator (.keySet cache))]
+        (while (.hasNext iter)
+          (let [k (first (.next iter))]
+            (when (or (nil? k) (= k user-key))
+              (.remove iter))))))))
 
 ; retrieval
 
+(defn reducible-query
+  "Returns a reducible over the prepared rows of statement. Each reduce
+  streams the result set through one connection instead of building a
+  vector of every row."
+  ([statement table] (reducible-query statement table nil))
+  ([statement table columns]
+   (reify protocols/CollReduce
+     (coll-reduce [this f]
+       (protocols/coll-reduce this f (f)))
+     (coll-reduce [this f init]
+       (with-connection
+         (jdbc/with-query-results
+           rs
+           statement
+           (reduce #(f %1 (prepare-row table columns %2)) init rs)))))))
+
 (defn get-single-user-data
   [params]
   (let [user-hash (:userhash params)]
-    (jdbc/with-connection
-      @spec
-      (jdbc/with-query-results
-        rs
-        ["SELECT * FROM user WHERE userhash = ?" user-hash]
-        (if-let [user (first (prepare-results rs :user))]
-          (dissoc user :time)
-          {:userhash user-hash :type :user})))))
+    (with-cache
+      (cache-key user-hash :user)
+      (with-connection
+        (jdbc/with-query-results
+          rs
+          ["SELECT * FROM user WHERE userhash = ?" user-hash]
+          (if-let [user (first (prepare-results rs :user))]
+            (dissoc user :time)
+            {:userhash user-hash :type :user}))))))
 
 (defn get-single-post-data
   [params]
   (let [user-hash (:userhash params)
         create-time (:time params)]
-    (jdbc/with-connection
-      @spec
-      (jdbc/with-query-results
-        rs
-        ["SELECT * FROM post WHERE userhash = ? AND time = ? AND status = 1"
-         user-hash create-time]
-        (if-let [post (first (prepare-results rs :post))]
-          post
-          {:userhash user-hash :time create-time :type :post})))))
+    (with-cache
+      (cache-key user-hash :post create-time)
+      (with-connection
+        (jdbc/with-query-results
+          rs
+          ["SELECT * FROM post WHERE userhash = ? AND time = ? AND status = 1"
+           user-hash create-time]
+          (if-let [post (first (prepare-results rs :post))]
+            post
+            {:userhash user-hash :time create-time :type :post}))))))
 
 (defn get-post-data
   [params]
-  (let [user-hash (:userhash params)
-        page (:page params)]
-    (jdbc/with-connection
-      @spec
+  (let [user-hash (:userhash params)]
+    (with-connection
       (jdbc/with-query-results
         rs
-        [(paginate page
-                   "SELECT * FROM post 
-                   WHERE userhash = ? AND status = 1 ORDER BY time DESC")
-         user-hash]
+        (seek params
+              post-sort-key
+              ["SELECT post.* FROM post 
+               WHERE userhash = ? AND status = 1 
+               ORDER BY post.time DESC, post.userhash DESC"
+               user-hash])
         (prepare-results rs :post)))))
 
 (defn get-single-fav-data
@@ -146,20 +423,20 @@
   ([params my-user-hash]
    (let [ptr-hash (:userhash params)
          ptr-time (:time params)]
-     (jdbc/with-connection
-       @spec
-       (jdbc/with-query-results
-         rs
-         ["SELECT * FROM fav WHERE userhash = ? AND ptrhash = ? AND ptrtime IS ?"
-          my-user-hash ptr-hash ptr-time]
-         (first (prepare-results rs :fav)))))))
+     (with-cache
+       (cache-key my-user-hash :fav ptr-hash ptr-time)
+       (with-connection
+         (jdbc/with-query-results
+           rs
+           ["SELECT * FROM fav WHERE userhash = ? AND ptrhash = ? AND ptrtime IS ?"
+            my-user-hash ptr-hash ptr-time]
+           (first (prepare-results rs :fav))))))))
 
 (defn get-fav-data
   ([params] (get-fav-data params @c/my-hash-bytes))
   ([params my-user-hash]
    (let [ptr-hash (:ptrhash params)]
-     (jdbc/with-connection
-       @spec
+     (with-connection
        (jdbc/with-query-results
          rs
          ["SELECT * FROM fav WHERE ptrhash = ? 
@@ -170,10 +447,72 @@
           ptr-hash my-user-hash my-user-hash]
          (prepare-results rs :fav))))))
 
+(defn sql-params
+  "Returns a comma-separated list of n placeholders for an IN clause."
+  [n]
+  (apply str (interpose ", " (repeat n "?"))))
+
+(defn count-followers
+  "Counts the favs pointing at ptr-hash from any of the given users or from
+  the users they follow, in a single query."
+  [ptr-hash my-user-hashes]
+  (if (empty? my-user-hashes)
+    0
+    (let [params (sql-params (count my-user-hashes))]
+      (with-connection
+        (jdbc/with-query-results
+          rs
+          (vec (concat [(str "SELECT COUNT(*) AS count FROM fav
+                             WHERE ptrhash = ? AND status = 1
+                             AND (userhash IN
+                             (SELECT ptrhash FROM fav
+                             WHERE userhash IN (" params ") AND status = 1)
+                             OR userhash IN (" params "))")
+                        ptr-hash]
+                       my-user-hashes
+                       my-user-hashes))
+          (:count (first rs)))))))
+
+(defn count-follows
+  "Counts how many of the given users follow user-hash."
+  [user-hash my-user-hashes]
+  (if (empty? my-user-hashes)
+    0
+    (with-connection
+      (jdbc/with-query-results
+        rs
+        (vec (concat [(str "SELECT COUNT(*) AS count FROM fav
+                           WHERE ptrhash = ? AND ptrtime IS NULL AND status = 1
+                           AND userhash IN ("
+                           (sql-params (count my-user-hashes)) ")")
+                      user-hash]
+                     my-user-hashes))
+        (:count (first rs))))))
+
+(defn get-followed-hashes
+  "Returns the hashes a user points to with favs that are still on."
+  [user-hash]
+  (with-connection
+    (jdbc/with-query-results
+      rs
+      ["SELECT DISTINCT ptrhash FROM fav WHERE userhash = ? AND status = 1"
+       user-hash]
+      (vec (keep :ptrhash rs)))))
+
 (defn get-category-data
   [params]
   (let [data-type (:type params)
         sub-type (:subtype params)
+        sort-key (case data-type
+                   :user user-sort-key
+                   :post post-sort-key
+                   :fav fav-sort-key
+                   :search (case sub-type
+                             :user user-sort-key
+                             :post post-sort-key
+                             nil)
+                   :tag tag-sort-key
+                   nil)
         statement (case data-type
                     :user (if-let [tag (:tag params)]
                             ["SELECT user.* FROM user 
@@ -181,8 +520,9 @@
                              ON user.userhash = tag.userhash 
                              WHERE tag.title = ? 
                              AND tag.ptrtime IS NULL 
-                             ORDER BY user.time DESC" tag]
-                            ["SELECT * FROM user ORDER BY time DESC"])
+                             ORDER BY user.time DESC, user.userhash DESC" tag]
+                            ["SELECT user.* FROM user 
+                             ORDER BY user.time DESC, user.userhash DESC"])
                     :post (if-let [tag (:tag params)]
                             ["SELECT post.*, user.title AS subtitle FROM post 
                              INNER JOIN tag
@@ -192,12 +532,12 @@
                              ON post.userhash = user.userhash 
                              WHERE post.status = 1 
                              AND tag.title = ? 
-                             ORDER BY post.time DESC" tag]
+                             ORDER BY post.time DESC, post.userhash DESC" tag]
                             ["SELECT post.*, user.title AS subtitle FROM post 
                              LEFT JOIN user 
                              ON post.userhash = user.userhash 
                              WHERE post.status = 1 
-                             ORDER BY post.time DESC"])
+                             ORDER BY post.time DESC, post.userhash DESC"])
                     :fav (case sub-type
                            :user ["SELECT fav.ptrhash AS userhash, user.* 
                                   FROM fav 
@@ -206,7 +546,7 @@
                                   WHERE fav.userhash = ? 
                                   AND fav.status = 1 
                                   AND fav.ptrtime IS NULL 
-                                  ORDER BY fav.mtime DESC"
+                                  ORDER BY fav.mtime DESC, fav.id DESC"
                                   (:userhash params)]
                            :post ["SELECT fav.ptrhash AS userhash, post.*, 
                                   user.title AS subtitle 
@@ -219,7 +559,7 @@
                                   WHERE fav.userhash = ? 
                                   AND fav.status = 1 
                                   AND post.status = 1 
-                                  ORDER BY fav.mtime DESC"
+                                  ORDER BY fav.mtime DESC, fav.id DESC"
                                   (:userhash params)]
                            nil)
                     :search (case sub-type
@@ -227,7 +567,7 @@
                                      FROM FT_SEARCH_DATA(?, 0, 0) ft, user 
                                      WHERE ft.TABLE = 'USER' 
                                      AND user.id = ft.KEYS[0] 
-                                     ORDER BY user.time DESC"
+                                     ORDER BY user.time DESC, user.userhash DESC"
                                      (:query params)]
                               :post ["SELECT post.*, user.title AS subtitle 
                                      FROM FT_SEARCH_DATA(?, 0, 0) ft, post 
@@ -236,30 +576,28 @@
                                      WHERE ft.TABLE='POST' 
                                      AND post.id = ft.KEYS[0] 
                                      AND post.status = 1 
-                                     ORDER BY post.time DESC"
+                                     ORDER BY post.time DESC, post.userhash DESC"
                                      (:query params)]
                               nil)
                     :tag (case sub-type
-                           :user ["SELECT title AS tag, 
-                                  COUNT(*) AS count 
-                                  FROM tag 
-                                  WHERE ptrtime IS NULL 
-                                  GROUP BY title 
-                                  ORDER BY count DESC"]
-                           :post ["SELECT title AS tag, 
-                                  COUNT(*) AS count 
-                                  FROM tag 
-                                  WHERE ptrtime IS NOT NULL 
-                                  GROUP BY title 
-                                  ORDER BY count DESC"]
+                           :user ["SELECT tagcount.title AS tag, 
+                                  tagcount.count 
+                                  FROM tagcount 
+                                  WHERE tagcount.post = FALSE 
+                                  ORDER BY tagcount.post DESC, 
+                                  tagcount.count DESC, tagcount.title DESC"]
+                           :post ["SELECT tagcount.title AS tag, 
+                                  tagcount.count 
+                                  FROM tagcount 
+                                  WHERE tagcount.post = TRUE 
+                                  ORDER BY tagcount.post DESC, 
+                                  tagcount.count DESC, tagcount.title DESC"]
                            nil))]
     (when statement
-      (jdbc/with-connection
-        @spec
+      (with-connection
         (jdbc/with-query-results
           rs
-          (vec (concat [(paginate (:page params) (first statement))]
-                       (rest statement)))
+          (seek params sort-key statement)
           (prepare-results rs (or sub-type data-type)))))))
 
 (defn get-single-tag-data
@@ -280,134 +618,261 @@
                            LIMIT 1" tag]
                     nil)]
     (when statement
-      (jdbc/with-connection
-        @spec
-        (jdbc/with-query-results
-          rs
-          statement
-          (first (prepare-results rs :tag)))))))
+      (with-cache
+        (cache-key nil :tag (:type params) tag)
+        (with-connection
+          (jdbc/with-query-results
+            rs
+            statement
+            (first (prepare-results rs :tag))))))))
 
 (defn get-pic-data
   ([params]
    (let [user-hash (:userhash params)
          pic-hash (:pichash params)]
-     (jdbc/with-connection
-       @spec
-       (jdbc/with-query-results
-         rs
-         ["SELECT * FROM pic WHERE userhash = ? AND pichash = ?"
-          user-hash pic-hash]
-         (prepare-results rs :pic)))))
+     (with-cache
+       (cache-key user-hash :pic pic-hash)
+       (with-connection
+         (jdbc/with-query-results
+           rs
+           ["SELECT * FROM pic WHERE userhash = ? AND pichash = ?"
+            user-hash pic-hash]
+           (prepare-results rs :pic))))))
   ([params ptr-time paginate?]
    (let [user-hash (:userhash params)
          page (:page params)]
-     (jdbc/with-connection
-       @spec
-       (jdbc/with-query-results
-         rs
-         [(let [sql "SELECT * FROM pic WHERE userhash = ? AND ptrtime IS ?"]
-            (if paginate? (paginate page sql) sql))
-          user-hash ptr-time]
-         (prepare-results rs :pic))))))
+     (with-cache
+       (cache-key user-hash :pics ptr-time (when paginate? page))
+       (with-connection
+         (jdbc/with-query-results
+           rs
+           [(let [sql "SELECT * FROM pic WHERE userhash = ? AND ptrtime IS ?"]
+              (if paginate? (paginate page sql) sql))
+            user-hash ptr-time]
+           (prepare-results rs :pic)))))))
+
+(defn get-pic-hashes
+  "Returns the set of base32-encoded pic hashes that user-hash refers to."
+  [user-hash]
+  (->> (reducible-query ["SELECT pichash FROM pic WHERE userhash = ?" user-hash]
+                        :pic
+                        [:pichash])
+       (reduce #(conj! %1 (f/base32-encode (:pichash %2))) (transient #{}))
+       (persistent!)))
 
 ; insertion / removal
 
-(defn insert-tag-list
+(defn group-changes
+  "Groups changes that can share one prepared statement."
+  [changes]
+  (vals (group-by (fn [{:keys [op table where record]}]
+                    [op table (first where) (keys record)])
+                  changes)))
+
+(defn query-each
+  "Runs a query once for each param group through one prepared statement."
+  [sql param-groups]
+  (with-open [^PreparedStatement stmt (jdbc/prepare-statement
+                                        (jdbc/connection) sql)]
+    (reduce (fn [rows params]
+              (dorun (map-indexed #(.setObject stmt (inc %1) %2) params))
+              (with-open [rs (.executeQuery stmt)]
+                (into rows (jdbc/resultset-seq rs))))
+            []
+            param-groups)))
+
+(defn apply-deletes
+  "Deletes rows in one batch and returns the tags it removed, if any."
+  [changes]
+  (let [{:keys [table where]} (first changes)
+        param-groups (map #(rest (:where %)) changes)
+        removed (when (= table :tag)
+                  (query-each (str "SELECT title, ptrtime FROM tag WHERE "
+                                   (first where))
+                              param-groups))]
+    (apply jdbc/do-prepared
+           (format "DELETE FROM %s WHERE %s"
+                   (jdbc/as-identifier table) (first where))
+           param-groups)
+    removed))
+
+(defn apply-updates
+  [changes]
+  (let [{:keys [table where record]} (first changes)
+        columns (keys record)]
+    (apply jdbc/do-prepared
+           (format "UPDATE %s SET %s WHERE %s"
+                   (jdbc/as-identifier table)
+                   (->> columns
+                        (map #(str (jdbc/as-identifier %) " = ?"))
+                        (clojure.string/join ", "))
+                   (first where))
+           (for [change changes]
+             (concat (map (:record change) columns)
+                     (rest (:where change)))))))
+
+(defn apply-inserts
+  [changes]
+  (let [{:keys [table record]} (first changes)
+        columns (keys record)]
+    (apply jdbc/insert-values
+           table
+           columns
+           (for [change changes]
+             (map (:record change) columns)))))
+
+(defn apply-upserts
+  "Batched equivalent of update-or-insert-values: updates every row it can,
+  then inserts the ones that matched nothing. Returns the tags it added."
+  [changes]
+  (let [counts (apply-updates changes)
+        missing (->> (map vector changes counts)
+                     (filter #(zero? (second %)))
+                     (map first))]
+    (when (seq missing)
+      (apply-inserts missing)
+      (when (= :tag (:table (first missing)))
+        (map :record missing)))))
+
+(defn update-tag-counts
+  "Adjusts the tag counts by the tags that were removed and added."
+  [removed added]
+  (let [tag-key (juxt :title #(not (nil? (:ptrtime %))))
+        deltas (->> (concat (for [tag added] [(tag-key tag) 1])
+                            (for [tag removed] [(tag-key tag) -1]))
+                    (reduce (fn [m [k delta]]
+                              (assoc m k (+ delta (get m k 0))))
+                            {})
+                    (remove #(zero? (val %))))]
+    (when (seq deltas)
+      (let [counts (apply jdbc/do-prepared
+                          "UPDATE tagcount SET count = count + ? 
+                          WHERE title = ? AND post = ?"
+                          (for [[[title post?] delta] deltas]
+                            [delta title post?]))
+            missing (for [[[[title post?] delta] n] (map vector deltas counts)
+                          :when (and (zero? n) (pos? delta))]
+                      [title post? delta])
+            emptied (for [[[title post?] delta] deltas
+                          :when (neg? delta)]
+                      [title post?])]
+        (when (seq missing)
+          (apply jdbc/insert-values :tagcount [:title :post :count] missing))
+        (when (seq emptied)
+          (apply jdbc/do-prepared
+                 "DELETE FROM tagcount 
+                 WHERE title = ? AND post = ? AND count <= 0"
+                 emptied))))))
+
+(defn apply-changes
+  "Writes a list of changes in a single transaction. Deletes run first, then
+  upserts, then updates, and each group of changes with the same SQL is sent
+  as one batch through one prepared statement. The tag counts are adjusted
+  by whatever tags were removed or added along the way."
+  [changes]
+  (let [ops (group-by :op (vec changes))]
+    (with-connection
+      (jdbc/transaction
+        (let [removed (->> (group-changes (:delete ops))
+                           (mapcat apply-deletes)
+                           (doall))
+              added (->> (group-changes (:upsert ops))
+                         (mapcat apply-upserts)
+                         (doall))]
+          (doseq [group (group-changes (:update ops))]
+            (apply-updates group))
+          (update-tag-counts removed added))))))
+
+(defn tag-list-changes
   [user-hash ptr-time edit-time args]
   (let [tags (f/tags-decode (f/b-decode-string (get args "body")))
         pics (f/b-decode-list (get args "pics"))
         pic-hash (f/b-decode-bytes (get pics 0))]
-    (jdbc/with-connection
-      @spec
-      (jdbc/delete-rows
-        :tag
-        ["userhash = ? AND ptrtime IS ? AND mtime < ?"
-         user-hash ptr-time edit-time])
-      (doseq [tag tags]
-        (jdbc/update-or-insert-values
-          :tag
-          ["title = ? AND userhash = ? AND ptrtime IS ?"
-           tag user-hash ptr-time]
-          {:realuserhash user-hash
-           :userhash user-hash
-           :title tag
-           :mtime edit-time
-           :ptrtime ptr-time
-           :pichash pic-hash})))
-    tags))
+    (cons {:op :delete
+           :table :tag
+           :where ["userhash = ? AND ptrtime IS ? AND mtime < ?"
+                   user-hash ptr-time edit-time]}
+          (for [tag tags]
+            {:op :upsert
+             :table :tag
+             :where ["title = ? AND userhash = ? AND ptrtime IS ?"
+                     tag user-hash ptr-time]
+             :record {:realuserhash user-hash
+                      :userhash user-hash
+                      :title tag
+                      :mtime edit-time
+                      :ptrtime ptr-time
+                      :pichash pic-hash}}))))
 
-(defn insert-pic-list
+(defn pic-list-changes
   [user-hash ptr-time edit-time args]
   (let [pics (f/b-decode-list (get args "pics"))]
-    (jdbc/with-connection
-      @spec
-      (jdbc/delete-rows
-        :pic
-        ["userhash = ? AND ptrtime IS ? AND mtime < ?"
-         user-hash ptr-time edit-time])
-      (doseq [pic pics]
-        (when-let [pic-hash (f/b-decode-bytes pic)]
-          (jdbc/update-or-insert-values
-            :pic
-            ["pichash = ? AND userhash = ? AND ptrtime IS ?"
-             pic-hash user-hash ptr-time]
-            {:realuserhash user-hash
-             :userhash user-hash
-             :pichash pic-hash
-             :mtime edit-time
-             :ptrtime ptr-time}))))
-    pics))
+    (cons {:op :delete
+           :table :pic
+           :where ["userhash = ? AND ptrtime IS ? AND mtime < ?"
+                   user-hash ptr-time edit-time]}
+          (for [pic-hash (->> (keep f/b-decode-bytes pics)
+                              (map vec)
+                              (distinct)
+                              (map byte-array))]
+            {:op :upsert
+             :table :pic
+             :where ["pichash = ? AND userhash = ? AND ptrtime IS ?"
+                     pic-hash user-hash ptr-time]
+             :record {:realuserhash user-hash
+                      :userhash user-hash
+                      :pichash pic-hash
+                      :mtime edit-time
+                      :ptrtime ptr-time}}))))
 
-(defn insert-profile
+(defn profile-changes
   [user-hash args]
   (let [edit-time (f/b-decode-long (get args "mtime"))
-        pics (insert-pic-list user-hash nil edit-time args)
-        tags (insert-tag-list user-hash nil edit-time args)]
-    (when (and edit-time
-               (<= edit-time (.getTime (java.util.Date.))))
-      (jdbc/with-connection
-        @spec
-        (jdbc/update-or-insert-values
-          :user
-          ["userhash = ?" user-hash]
-          {:realuserhash user-hash 
-           :userhash user-hash 
-           :title (f/b-decode-string (get args "title"))
-           :body (f/b-decode-string (get args "body"))
-           :mtime edit-time
-           :pichash (f/b-decode-bytes (get pics 0))
-           :status (f/b-decode-long (get args "status"))})
-        (jdbc/update-values
-          :user
-          ["userhash = ? AND time IS NULL" user-hash]
-          {:time (.getTime (java.util.Date.))})))))
+        pics (f/b-decode-list (get args "pics"))]
+    (concat (pic-list-changes user-hash nil edit-time args)
+            (tag-list-changes user-hash nil edit-time args)
+            (when (and edit-time
+                       (<= edit-time (.getTime (java.util.Date.))))
+              [{:op :upsert
+                :table :user
+                :where ["userhash = ?" user-hash]
+                :record {:realuserhash user-hash 
+                         :userhash user-hash 
+                         :title (f/b-decode-string (get args "title"))
+                         :body (f/b-decode-string (get args "body"))
+                         :mtime edit-time
+                         :pichash (f/b-decode-bytes (get pics 0))
+                         :status (f/b-decode-long (get args "status"))}}
+               {:op :update
+                :table :user
+                :where ["userhash = ? AND time IS NULL" user-hash]
+                :record {:time (.getTime (java.util.Date.))}}]))))
 
-(defn insert-post
+(defn post-changes
   [user-hash post-time args]
   (let [edit-time (f/b-decode-long (get args "mtime"))
-        pics (insert-pic-list user-hash post-time edit-time args)
-        tags (insert-tag-list user-hash post-time edit-time args)]
-    (when (and post-time
-               (<= post-time (.getTime (java.util.Date.)))
-               edit-time
-               (<= edit-time (.getTime (java.util.Date.))))
-      (jdbc/with-connection
-        @spec
-        (jdbc/update-or-insert-values
-          :post
-          ["userhash = ? AND time = ?" user-hash post-time]
-          {:realuserhash user-hash 
-           :userhash user-hash
-           :body (f/b-decode-string (get args "body"))
-           :time post-time
-           :mtime edit-time
-           :pichash (f/b-decode-bytes (get pics 0))
-           :count (count pics)
-           :ptrhash (f/b-decode-bytes (get args "ptrhash"))
-           :ptrtime (f/b-decode-long (get args "ptrtime"))
-           :status (f/b-decode-long (get args "status"))})))))
+        pics (f/b-decode-list (get args "pics"))]
+    (concat (pic-list-changes user-hash post-time edit-time args)
+            (tag-list-changes user-hash post-time edit-time args)
+            (when (and post-time
+                       (<= post-time (.getTime (java.util.Date.)))
+                       edit-time
+                       (<= edit-time (.getTime (java.util.Date.))))
+              [{:op :upsert
+                :table :post
+                :where ["userhash = ? AND time = ?" user-hash post-time]
+                :record {:realuserhash user-hash 
+                         :userhash user-hash
+                         :body (f/b-decode-string (get args "body"))
+                         :time post-time
+                         :mtime edit-time
+                         :pichash (f/b-decode-bytes (get pics 0))
+                         :count (count pics)
+                         :ptrhash (f/b-decode-bytes (get args "ptrhash"))
+                         :ptrtime (f/b-decode-long (get args "ptrtime"))
+                         :status (f/b-decode-long (get args "status"))}}]))))
 
-(defn insert-fav
+(defn fav-changes
   [user-hash fav-time args]
   (let [edit-time (f/b-decode-long (get args "mtime"))
         ptr-hash (f/b-decode-bytes (get args "ptrhash"))
@@ -417,40 +882,74 @@
                (<= fav-time (.getTime (java.util.Date.)))
                edit-time
                (<= edit-time (.getTime (java.util.Date.))))
-      (jdbc/with-connection
-        @spec
-        (jdbc/update-or-insert-values
-          :fav
-          ["userhash = ? AND ptrhash = ? AND ptrtime IS ?"
-           user-hash ptr-hash ptr-time]
-          {:realuserhash user-hash 
-           :userhash user-hash
-           :time fav-time
-           :mtime edit-time
-           :ptrhash ptr-hash
-           :ptrtime ptr-time
-           :status (f/b-decode-long (get args "status"))})))))
+      [{:op :upsert
+        :table :fav
+        :where ["userhash = ? AND ptrhash = ? AND ptrtime IS ?"
+                user-hash ptr-hash ptr-time]
+        :record {:realuserhash user-hash 
+                 :userhash user-hash
+                 :time fav-time
+                 :mtime edit-time
+                 :ptrhash ptr-hash
+                 :ptrtime ptr-time
+                 :status (f/b-decode-long (get args "status"))}}])))
 
-(defn insert-meta-data
+(defn meta-data-changes
   [user-hash data-map]
   (case (:dir-name data-map)
-    "post" (insert-post user-hash
-                        (f/long-decode (:file-name data-map))
-                        (:contents data-map))
-    "fav" (insert-fav user-hash
-                      (f/long-decode (:file-name data-map))
-                      (:contents data-map))
+    "post" (post-changes user-hash
+                         (f/long-decode (:file-name data-map))
+                         (:contents data-map))
+    "fav" (fav-changes user-hash
+                       (f/long-decode (:file-name data-map))
+                       (:contents data-map))
     "meta" (case (:file-name data-map)
-             "user.profile" (insert-profile user-hash (:contents data-map))
+             "user.profile" (profile-changes user-hash (:contents data-map))
              nil)
     nil))
 
+(defn insert-tag-list
+  [user-hash ptr-time edit-time args]
+  (apply-changes (tag-list-changes user-hash ptr-time edit-time args))
+  (invalidate-cache user-hash)
+  (f/tags-decode (f/b-decode-string (get args "body"))))
+
+(defn insert-pic-list
+  [user-hash ptr-time edit-time args]
+  (apply-changes (pic-list-changes user-hash ptr-time edit-time args))
+  (invalidate-cache user-hash)
+  (f/b-decode-list (get args "pics")))
+
+(defn insert-profile
+  [user-hash args]
+  (apply-changes (profile-changes user-hash args))
+  (invalidate-cache user-hash))
+
+(defn insert-post
+  [user-hash post-time args]
+  (apply-changes (post-changes user-hash post-time args))
+  (invalidate-cache user-hash))
+
+(defn insert-fav
+  [user-hash fav-time args]
+  (apply-changes (fav-changes user-hash fav-time args))
+  (invalidate-cache user-hash))
+
+(defn insert-meta-data
+  [user-hash data-map]
+  (apply-changes (meta-data-changes user-hash data-map))
+  (invalidate-cache user-hash))
+
+(defn insert-meta-batch
+  "Ingests every decoded file of a meta torrent in one transaction."
+  [user-hash data-maps]
+  (apply-changes (mapcat #(meta-data-changes user-hash %) data-maps))
+  (invalidate-cache user-hash))
+
 (defn delete-user
   [user-hash]
-  (jdbc/with-connection
-    @spec
-    (jdbc/delete-rows :user ["userhash = ?" user-hash])
-    (jdbc/delete-rows :post ["userhash = ?" user-hash])
-    (jdbc/delete-rows :pic ["userhash = ?" user-hash])
-    (jdbc/delete-rows :fav ["userhash = ?" user-hash])
-    (jdbc/delete-rows :tag ["userhash = ?" user-hash])))
+  (apply-changes (for [table [:user :post :pic :fav :tag]]
+                   {:op :delete
+                    :table table
+                    :where ["userhash = ?" user-hash]}))
+  (invalidate-cache user-hash))
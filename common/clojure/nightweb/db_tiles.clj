@@ -8,14 +8,14 @@
   (if (> (count results) db/limit)
     (let [next-page (-> (:page content)
                         (or 1)
-                        (+ 1))]
-      (-> results
-          (pop)
-          (conj (assoc content
-                       :title :page
-                       :background :next
-                       :add-emphasis? true
-                       :page next-page))))
+                        (+ 1))
+          results (pop results)]
+      (conj results (assoc content
+                           :title :page
+                           :background :next
+                           :add-emphasis? true
+                           :page next-page
+                           :cursor (:cursor (peek results)))))
     results))
 
 (defn get-post-tiles
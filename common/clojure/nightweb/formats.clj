@@ -1,7 +1,7 @@
 (ns nightweb.formats
   (:require [nightweb.constants :as c]
             [nightweb.crypto :as crypto])
-  (:import [java.io ByteArrayInputStream]
+  (:import [java.io ByteArrayInputStream InputStream]
            [org.klomp.snark.bencode BEncoder BDecoder BEValue]))
 
 (defn remove-dupes-and-nils
@@ -24,9 +24,11 @@
     (catch Exception e nil)))
 
 (defn b-decode
-  [data-barray]
+  [data]
   (try
-    (BDecoder/bdecode (ByteArrayInputStream. data-barray))
+    (BDecoder/bdecode (if (instance? InputStream data)
+                        data
+                        (ByteArrayInputStream. data)))
     (catch Exception e nil)))
 
 (defn b-decode-map
@@ -98,7 +100,11 @@
                    (when-let [tag-val (:tag content)]
                      (str "tag=" tag-val))
                    (when-let [query-val (:query content)]
-                     (str "query=" query-val))])]
+                     (str "query=" query-val))
+                   (when-let [page-val (:page content)]
+                     (str "page=" page-val))
+                   (when-let [cursor-val (:cursor content)]
+                     (str "cursor=" cursor-val))])]
      (str path (clojure.string/join "&" params)))))
 
 (defn url-decode
@@ -116,23 +122,29 @@
                 userhash-val :userhash
                 time-val :time
                 tag-val :tag
-                query-val :query} url-map]
+                query-val :query
+                page-val :page
+                cursor-val :cursor} url-map]
            {:type (when type-val (keyword type-val))
             :subtype (when subtype-val (keyword subtype-val))
             :userhash (when userhash-val (base32-decode userhash-val))
             :time (when time-val (long-decode time-val))
             :tag tag-val
-            :query query-val})
+            :query query-val
+            :page (when page-val (long-decode page-val))
+            :cursor cursor-val})
          url-map)))))
 
 (defn escape-html
   [text]
   (when text
-    (clojure.string/escape text
-                           {\& "&amp;"
-                            \< "&lt;"
-                            \> "&gt;"
-                            \" "&quot;"})))
+    (if (re-find #"[&<>\"]" text)
+      (clojure.string/escape text
+                             {\& "&amp;"
+                              \< "&lt;"
+                              \> "&gt;"
+                              \" "&quot;"})
+      text)))
 
 (def ^:const min-tag-length 2)
 (def ^:const max-tag-count 20)
@@ -4,9 +4,14 @@
             [nightweb.crypto :as crypto]
             [nightweb.db :as db]
             [nightweb.formats :as f])
-  (:import [java.io File]
+  (:import [java.io File FileOutputStream RandomAccessFile]
+           [java.nio ByteBuffer]
+           [java.nio.channels FileChannel]
+           [java.util Arrays]
            [net.i2p.data PrivateKeyFile]))
 
+(def max-file-size (atom 500000))
+
 ; basic file operations
 
 (defn file-exists?
@@ -17,18 +22,46 @@
   [path data-barray]
   (when-let [parent-dir (.getParentFile (java.io/file path))]
     (.mkdirs parent-dir))
-  (with-open [bos (java.io/output-stream path)]
-    (.write bos data-barray 0 (alength ^bytes data-barray))))
+  (with-open [^FileChannel channel (.getChannel (FileOutputStream.
+                                                  (java.io/file path)))]
+    (let [buffer (ByteBuffer/wrap data-barray)]
+      (while (.hasRemaining buffer)
+        (.write channel buffer)))))
+
+(defn fill-buffer
+  "Reads from the channel until the buffer is full or the file ends."
+  [^FileChannel channel ^ByteBuffer buffer]
+  (while (and (.hasRemaining buffer)
+              (>= (.read channel buffer) 0)))
+  buffer)
 
 (defn read-file
-  [path]
-  (when (file-exists? path)
-    (let [length (.length (java.io/file path))]
-      (when (< length 500000)
-        (let [data-barray (byte-array length)]
-          (with-open [bis (java.io/input-stream path)]
-            (.read bis data-barray))
-          data-barray)))))
+  "Reads a whole file onto the heap. Files at or above max-size are refused
+  so a peer can't make us allocate arbitrary amounts of memory."
+  ([path] (read-file path @max-file-size))
+  ([path max-size]
+   (when (file-exists? path)
+     (let [length (.length (java.io/file path))]
+       (if (>= length max-size)
+         (println "File too large to read:" path length)
+         (with-open [^FileChannel channel (.getChannel (RandomAccessFile.
+                                                         (java.io/file path)
+                                                         "r"))]
+           (let [data-barray (byte-array length)]
+             (fill-buffer channel (ByteBuffer/wrap data-barray))
+             data-barray)))))))
+
+(defn decode-file
+  "Bdecodes a file by streaming it rather than reading it all first. Like
+  read-file, files at or above max-size are refused."
+  ([path] (decode-file path @max-file-size))
+  ([path max-size]
+   (when (file-exists? path)
+     (let [length (.length (java.io/file path))]
+       (if (>= length max-size)
+         (println "File too large to decode:" path length)
+         (with-open [in (java.io/input-stream path)]
+           (f/b-decode in)))))))
 
 (defn delete-file
   [path]
@@ -166,6 +199,12 @@
         (.put "data" (f/b-encode {"user_hash"
                                   (f/base32-decode user-hash-str)}))))))
 
+(defn decode-meta-file
+  [path data-barray]
+  {:file-name (.getName (java.io/file path))
+   :dir-name (.getName (.getParentFile (java.io/file path)))
+   :contents (f/b-decode-map (f/b-decode data-barray))})
+
 (defn read-meta-file
   ([path path-leaves]
    (read-meta-file (-> (java.io/file path c/meta-dir)
@@ -174,22 +213,74 @@
   ([path]
    {:file-name (.getName (java.io/file path))
     :dir-name (.getName (.getParentFile (java.io/file path)))
-    :contents (f/b-decode-map (f/b-decode (read-file path)))}))
+    :contents (f/b-decode-map (decode-file path))}))
+
+(defn read-manifest-file
+  "Returns a map of meta file paths to the [length mtime hash] they had when
+  they were last ingested."
+  [user-hash-str]
+  ; we wrote it ourselves, so it can be as large as the torrent needs
+  (into {} (for [[path entry] (-> (c/get-meta-manifest-file user-hash-str)
+                                  (decode-file Long/MAX_VALUE)
+                                  f/b-decode-map)]
+             (let [[length mtime file-hash] (f/b-decode-list entry)]
+               [path [(f/b-decode-long length)
+                      (f/b-decode-long mtime)
+                      (f/b-decode-bytes file-hash)]]))))
+
+(defn write-manifest-file
+  [user-hash-str manifest]
+  (write-file (c/get-meta-manifest-file user-hash-str) (f/b-encode manifest)))
+
+(defn read-changed-meta-files
+  "Reads the meta files that differ from the manifest. Files whose length and
+  mtime are unchanged aren't read at all, and files whose contents hash the
+  same aren't returned. Pics are skipped, since they have nothing to ingest.
+  Returns [path contents] pairs for the changed files along with the new
+  manifest."
+  [path paths manifest]
+  (loop [paths paths
+         meta-files []
+         new-manifest {}]
+    (if-let [path-leaves (first paths)]
+      (if (= c/pic-dir (first path-leaves))
+        (recur (rest paths) meta-files new-manifest)
+        (let [manifest-path (clojure.string/join "/" path-leaves)
+              file-path (-> (java.io/file path c/meta-dir)
+                            .getCanonicalPath
+                            (join-path path-leaves))
+              ^File meta-file (java.io/file file-path)
+              length (.length meta-file)
+              mtime (.lastModified meta-file)
+              [old-length old-mtime old-hash] (get manifest manifest-path)]
+          (if (and (= length old-length) (= mtime old-mtime))
+            (recur (rest paths)
+                   meta-files
+                   (assoc new-manifest manifest-path [length mtime old-hash]))
+            (let [data-barray (read-file file-path)
+                  file-hash (some-> data-barray crypto/create-hash)]
+              (recur (rest paths)
+                     (if (or (nil? file-hash)
+                             (Arrays/equals ^bytes file-hash ^bytes old-hash))
+                       meta-files
+                       (conj meta-files [file-path data-barray]))
+                     (if file-hash
+                       (assoc new-manifest
+                              manifest-path [length mtime file-hash])
+                       new-manifest))))))
+      [meta-files new-manifest])))
 
 (defn delete-orphaned-pics
   [user-hash]
   (when user-hash
-    (doseq [^File pic (-> (f/base32-encode user-hash)
-                          c/get-pic-dir
-                          java.io/file
-                          file-seq)]
-      (when (and (.isFile pic)
-                 (-> {:userhash user-hash
-                      :pichash (f/base32-decode (.getName pic))}
-                     (db/get-pic-data)
-                     (count)
-                     (= 0)))
-        (.delete pic)))))
+    (let [pic-hashes (db/get-pic-hashes user-hash)]
+      (doseq [^File pic (-> (f/base32-encode user-hash)
+                            c/get-pic-dir
+                            java.io/file
+                            file-seq)]
+        (when (and (.isFile pic)
+                   (not (contains? pic-hashes (.getName pic))))
+          (.delete pic))))))
 
 (defn delete-orphaned-files
   [user-hash file-list]
@@ -0,0 +1,107 @@
+(ns nightweb.pipeline
+  (:import [java.util.concurrent ArrayBlockingQueue BlockingQueue
+                                 RejectedExecutionException
+                                 RejectedExecutionHandler ThreadFactory
+                                 ThreadPoolExecutor TimeUnit]
+           [net.i2p I2PAppContext]))
+
+(def ^:const default-queue-size 64)
+(def ^:dynamic *wait-when-full* true)
+
+; stats
+
+(defn add-stat
+  [stat-name value]
+  (-> (I2PAppContext/getGlobalContext)
+      .statManager
+      (.addRateData stat-name value)))
+
+(defn create-stats
+  [stage-name]
+  (let [stats (.statManager (I2PAppContext/getGlobalContext))
+        periods (long-array [(* 60 1000) (* 60 60 1000)])]
+    (.createRequiredRateStat stats
+                             (str "nightweb." stage-name ".queueSize")
+                             "How many tasks are waiting in this stage?"
+                             "Nightweb"
+                             periods)
+    (.createRequiredRateStat stats
+                             (str "nightweb." stage-name ".waitTime")
+                             "How long does a task wait to start?"
+                             "Nightweb"
+                             periods)
+    (.createRequiredRateStat stats
+                             (str "nightweb." stage-name ".runTime")
+                             "How long does a task take to run?"
+                             "Nightweb"
+                             periods)))
+
+; stages
+
+(defn create-stage
+  "Creates a stage with a fixed number of threads and a bounded queue.
+  Submitting to a full stage blocks the caller until there is room, which
+  pushes back on whatever stage is feeding it."
+  ([stage-name thread-count]
+   (create-stage stage-name thread-count default-queue-size))
+  ([stage-name thread-count queue-size]
+   (create-stats stage-name)
+   {:name stage-name
+    :executor (ThreadPoolExecutor.
+                thread-count
+                thread-count
+                0
+                TimeUnit/MILLISECONDS
+                (ArrayBlockingQueue. queue-size)
+                (reify ThreadFactory
+                  (newThread [this runnable]
+                    (doto (Thread. runnable (str "nightweb." stage-name))
+                      (.setDaemon true))))
+                (reify RejectedExecutionHandler
+                  (rejectedExecution [this runnable executor]
+                    (if *wait-when-full*
+                      (.put ^BlockingQueue (.getQueue executor) runnable)
+                      (throw (RejectedExecutionException.
+                               (str "Stage " stage-name " is full")))))))}))
+
+(defn submit
+  "Runs func on the given stage, recording the queue size along with how
+  long the task waited and ran."
+  [stage func]
+  (let [stage-name (:name stage)
+        ^ThreadPoolExecutor executor (:executor stage)
+        queued-time (System/currentTimeMillis)]
+    (add-stat (str "nightweb." stage-name ".queueSize")
+              (.size (.getQueue executor)))
+    (.execute executor
+              (fn []
+                (let [start-time (System/currentTimeMillis)]
+                  (add-stat (str "nightweb." stage-name ".waitTime")
+                            (- start-time queued-time))
+                  (try
+                    (func)
+                    (catch Throwable t
+                      (println "Error in" stage-name "stage:" (.getMessage t)))
+                    (finally
+                      (add-stat (str "nightweb." stage-name ".runTime")
+                                (- (System/currentTimeMillis) start-time)))))))))
+
+(defn try-submit
+  "Like submit, but returns false instead of waiting when the stage is full,
+  for callers that must not block."
+  [stage func]
+  (try
+    (binding [*wait-when-full* false]
+      (submit stage func))
+    true
+    (catch RejectedExecutionException ree
+      false)))
+
+(defn submit-async
+  "Like submit, but never blocks the caller. When the stage is full, a
+  separate thread waits for room instead, so a stage can feed one that
+  (indirectly) feeds it without the two waiting on each other forever."
+  [stage func]
+  (when-not (try-submit stage func)
+    (future (submit stage func)))
+  nil)
@@ -15,14 +15,15 @@
 (defn start-router
   "Starts the I2P router, I2PSnark manager, and the user and meta torrents."
   [dir]
-  ; set main dir and initialize the database
-  (reset! c/base-dir dir)
-  (db/init-db dir)
-  ; start i2psnark
+  ; set i2p dirs before anything creates the global context
   (System/setProperty "i2p.dir.base" dir)
   (System/setProperty "i2p.dir.config" dir)
   (System/setProperty "wrapper.logfile" (-> (java.io/file dir "wrapper.log")
                                             .getCanonicalPath))
+  ; set main dir and initialize the database
+  (reset! c/base-dir dir)
+  (db/init-db dir)
+  ; start i2psnark
   (t/start-torrent-manager dir)
   (dht/init-dht)
   ; create or load user
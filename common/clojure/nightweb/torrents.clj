@@ -2,12 +2,18 @@
   (:require [clojure.java.io :as java.io]
             [nightweb.constants :as c]
             [nightweb.formats :as f]
-            [nightweb.io :as io])
+            [nightweb.io :as io]
+            [nightweb.pipeline :as p])
   (:import [net.i2p I2PAppContext]
-           [org.klomp.snark CompleteListener MetaInfo Snark SnarkManager
-                            Storage StorageListener]))
+           [org.klomp.snark CompleteListener MetaInfo ResumeStore
+                            ResumeStore$Record Snark SnarkManager Storage
+                            StorageListener]))
 
 (def manager (atom nil))
+(def resume-store (atom nil))
+(def add-stage (delay (p/create-stage "torrents.add" 4 1024)))
+; info hashes of the torrents we added to each data dir
+(def torrents-by-dir (atom {}))
 
 ; active torrents
 
@@ -25,6 +31,22 @@
     (when-let [torrent (get-torrent-by-path path)]
       (func torrent))))
 
+(defn index-torrent
+  [dir info-hash-str]
+  (let [dir (.getCanonicalPath (java.io/file dir))]
+    (swap! torrents-by-dir update-in [dir] (fnil conj #{}) info-hash-str)))
+
+(defn get-torrents-in-dir
+  "Returns the torrents we added with the given data dir."
+  [dir]
+  (let [dir (.getCanonicalPath (java.io/file dir))]
+    (doall (for [info-hash-str (get @torrents-by-dir dir)
+                 :let [torrent (.getTorrentByInfoHash
+                                 ^SnarkManager @manager
+                                 (f/base32-decode info-hash-str))]
+                 :when torrent]
+             torrent))))
+
 (defn iterate-peers
   [^Snark torrent func]
   (doseq [peer (.getPeerList torrent)]
@@ -64,56 +86,96 @@
     (.close storage)
     storage))
 
+(defn load-resume
+  "Reads the fast-resume record for a torrent, if it has one."
+  [^Snark snark]
+  (when-let [meta-info (.getMetaInfo snark)]
+    (.load ^ResumeStore @resume-store meta-info)))
+
+(defn save-resume
+  "Records the bitfield and file times of a torrent so the next start can
+  skip hashing the files that haven't changed."
+  [^Snark snark]
+  (when-let [storage (.getStorage snark)]
+    (.save ^ResumeStore @resume-store storage)))
+
 (defn get-complete-listener
   "Creates a listener for each event in a given torrent download."
   [path complete-callback]
-  (reify CompleteListener
-    (torrentComplete [this snark]
-      (println "torrentComplete")
-      (.torrentComplete ^SnarkManager @manager snark)
-      (complete-callback snark))
-    (updateStatus [this snark]
-      (println "updateStatus")
-      (.updateStatus ^SnarkManager @manager snark))
-    (gotMetaInfo [this snark]
-      (println "gotMetaInfo")
-      (.gotMetaInfo ^SnarkManager @manager snark path))
-    (fatal [this snark error]
-      (println "fatal" error)
-      (.fatal ^SnarkManager @manager snark error))
-    (addMessage [this snark message]
-      (println "addMessage" message)
-      (.addMessage ^SnarkManager @manager snark message))
-    (gotPiece [this snark]
-      (println "gotPiece")
-      (.gotPiece ^SnarkManager @manager snark))
-    (getSavedTorrentTime [this snark]
-      (println "getSavedTorrentTime")
-      ;(.getSavedTorrentTime ^SnarkManager @manager snark)
-      0)
-    (getSavedTorrentBitField [this snark]
-      (println "getSavedTorrentBitField")
-      ;(.getSavedTorrentBitField ^SnarkManager @manager snark)
-      nil)))
+  ; the three getSaved calls come one after another when the torrent starts,
+  ; so only read its record once
+  (let [saved-record (atom nil)
+        get-record (fn [snark]
+                     (let [[saved-snark record :as saved] @saved-record]
+                       (if (and saved (identical? saved-snark snark))
+                         record
+                         (let [record (load-resume snark)]
+                           (reset! saved-record [snark record])
+                           record))))]
+    (reify CompleteListener
+      (torrentComplete [this snark]
+        (println "torrentComplete")
+        (.torrentComplete ^SnarkManager @manager snark)
+        (save-resume snark)
+        (complete-callback snark))
+      (updateStatus [this snark]
+        (println "updateStatus")
+        (.updateStatus ^SnarkManager @manager snark)
+        (save-resume snark))
+      (gotMetaInfo [this snark]
+        (println "gotMetaInfo")
+        (save-resume snark)
+        (.gotMetaInfo ^SnarkManager @manager snark path))
+      (fatal [this snark error]
+        (println "fatal" error)
+        (.fatal ^SnarkManager @manager snark error))
+      (addMessage [this snark message]
+        (println "addMessage" message)
+        (.addMessage ^SnarkManager @manager snark message))
+      (gotPiece [this snark]
+        (println "gotPiece")
+        (.gotPiece ^SnarkManager @manager snark))
+      (getSavedTorrentTime [this snark]
+        (println "getSavedTorrentTime")
+        ; a new start, so read the record again
+        (reset! saved-record nil)
+        (if-let [^ResumeStore$Record record (get-record snark)]
+          (.savedTime record)
+          0))
+      (getSavedTorrentBitField [this snark]
+        (println "getSavedTorrentBitField")
+        (when-let [^ResumeStore$Record record (get-record snark)]
+          (.bitfield record)))
+      (getSavedFileTimes [this snark]
+        (println "getSavedFileTimes")
+        (let [^ResumeStore$Record record (get-record snark)]
+          ; the last one, it isn't needed after this
+          (reset! saved-record nil)
+          (when record
+            (.fileTimes record)))))))
 
 (defn add-hash
-  "Adds an info hash to download."
+  "Adds an info hash to download. Doesn't block, since it is called from
+  the ingest stages that the torrents it adds feed into."
   [path info-hash-str is-persistent? complete-callback]
-  (future
-    (try
-      (.addMagnet ^SnarkManager @manager
-                  info-hash-str
-                  (f/base32-decode info-hash-str)
-                  nil
-                  false
-                  true
-                  (get-complete-listener path complete-callback)
-                  path)
-      (when-let [^Snark torrent (get-torrent-by-path info-hash-str)]
-        (.setPersistent torrent is-persistent?))
-      (println "Hash added to" path)
-      (catch IllegalArgumentException iae
-        (println "Error adding hash:" (.getMessage iae))))))
+  (p/submit-async
+    @add-stage
+    (fn []
+      (try
+        (.addMagnet ^SnarkManager @manager
+                    info-hash-str
+                    (f/base32-decode info-hash-str)
+                    nil
+                    false
+                    true
+                    (get-complete-listener path complete-callback)
+                    path)
+        (index-torrent path info-hash-str)
+        (when-let [^Snark torrent (get-torrent-by-path info-hash-str)]
+          (.setPersistent torrent is-persistent?))
+        (println "Hash added to" path)
+        (catch IllegalArgumentException iae
+          (println "Error adding hash:" (.getMessage iae)))))))
 
 (defn add-torrent
   "Adds a torrent to download or seed."
@@ -128,17 +190,20 @@
           meta-info (.getMetaInfo storage)
           bit-field (.getBitField storage)
           listener (get-complete-listener root-path complete-callback)]
-      (future
-        (.addTorrent ^SnarkManager @manager
-                     meta-info
-                     bit-field
-                     torrent-path
-                     false
-                     listener
-                     root-path)
-        (when-let [^Snark torrent (get-torrent-by-path torrent-path)]
-          (.setPersistent torrent is-persistent?))
-        (println "Torrent added to" torrent-path))
+      (p/submit
+        @add-stage
+        (fn []
+          (.addTorrent ^SnarkManager @manager
+                       meta-info
+                       bit-field
+                       torrent-path
+                       false
+                       listener
+                       root-path)
+          (index-torrent root-path (f/base32-encode (.getInfoHash meta-info)))
+          (when-let [^Snark torrent (get-torrent-by-path torrent-path)]
+            (.setPersistent torrent is-persistent?))
+          (println "Torrent added to" torrent-path)))
       (.getInfoHash meta-info))
     (catch java.io.IOException ioe
       (println "Error adding torrent:" (.getMessage ioe))
@@ -147,6 +212,13 @@
 (defn remove-torrent
   "Stops and deletes a torrent."
   [path]
+  (when-let [^Snark torrent (get-torrent-by-path path)]
+    (when-let [info-hash (.getInfoHash torrent)]
+      (.remove ^ResumeStore @resume-store info-hash)
+      (when-let [dir (.getDataDir torrent)]
+        (swap! torrents-by-dir update-in
+               [(.getCanonicalPath (java.io/file dir))]
+               disj (f/base32-encode info-hash)))))
   (.removeTorrent ^SnarkManager @manager path))
 
 (defn get-info-hash
@@ -168,6 +240,7 @@
   (let [context (I2PAppContext/getGlobalContext)
         snark-dir (.getCanonicalPath (java.io/file dir "i2psnark"))]
     (reset! manager (SnarkManager. context snark-dir snark-dir))
+    (reset! resume-store (ResumeStore. (java.io/file snark-dir "resume")))
     (.updateConfig ^SnarkManager @manager
                    nil ;dataDir
                    true ;filesPublic
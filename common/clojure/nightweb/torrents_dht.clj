@@ -5,8 +5,11 @@
             [nightweb.db :as db]
             [nightweb.io :as io]
             [nightweb.formats :as f]
+            [nightweb.pipeline :as p]
             [nightweb.torrents :as t])
-  (:import [net.i2p.data Destination]
+  (:import [java.util Arrays]
+           [net.i2p I2PAppContext]
+           [net.i2p.data Destination]
            [org.klomp.snark Peer Snark SnarkManager]
            [org.klomp.snark.dht DHT NodeInfo CustomQueryHandler]))
 
@@ -55,6 +58,71 @@
         .getDHT
         (.sendQuery node-info query true))))
 
+(defn send-meta-links
+  "Sends meta links to a node, batched into one announce_metas query if it
+  has shown it understands them, and one announce_meta query each if not."
+  [node-info links batch?]
+  (when node-info
+    (if (and batch? (next links))
+      (send-custom-query node-info "announce_metas"
+                         (doto (java.util.HashMap.)
+                           (.put "links" (java.util.ArrayList. links))))
+      (doseq [link links]
+        (send-custom-query node-info "announce_meta" link)))))
+
+(defn probe-meta-links
+  "Sends an empty announce_metas query. Nodes that understand it reply, so
+  we know to batch links to them; older ones ignore it."
+  [node-info]
+  (when node-info
+    (send-custom-query node-info "announce_metas"
+                       (doto (java.util.HashMap.)
+                         (.put "links" (java.util.ArrayList.))))))
+
+; what we last read from each link file and which versions each peer has
+(def link-cache (atom {}))
+(def gossip-state (atom {}))
+(def ^:const max-gossip-backoff 32)
+
+; what we know about each user's link, so announcements can be answered
+; without going to the disk or verifying a signature again
+(def verified-links (atom {}))
+(def pub-keys (atom {}))
+
+(defn get-link-time
+  "Returns the mtime inside a meta link, or 0 if it has none."
+  [link]
+  (or (-> (get link "data")
+          (f/b-decode-bytes)
+          (f/b-decode)
+          (f/b-decode-map)
+          (get "mtime")
+          (f/b-decode-long))
+      0))
+
+(defn get-meta-link
+  "Returns the meta link of a user and its mtime, only reading the link file
+  again when it has changed on disk."
+  ([user-hash-str]
+   (get-meta-link user-hash-str false))
+  ([user-hash-str force?]
+   (let [modified (.lastModified (java.io/file
+                                   (c/get-meta-link-file user-hash-str)))
+         cached (get @link-cache user-hash-str)]
+     (if (and cached (not force?) (= modified (:modified cached)))
+       cached
+       (let [link (io/read-link-file user-hash-str)
+             entry {:modified modified
+                    :link link
+                    :time (get-link-time link)}]
+         (swap! link-cache assoc user-hash-str entry)
+         entry)))))
+
+(defn get-peer-destination
+  [^Peer peer]
+  (when-let [peer-id (.getPeerID peer)]
+    (.getAddress peer-id)))
+
 (defn send-meta-link
   "Sends the relevant meta link to all peers in a given user torrent."
   ([]
@@ -63,24 +131,90 @@
      (send-meta-link torrent)))
   ([^Snark torrent]
    (let [info-hash-str (f/base32-encode (.getInfoHash torrent))
-         args (io/read-link-file info-hash-str)]
+         {:keys [link time]} (get-meta-link info-hash-str true)]
      (t/iterate-peers torrent
                       (fn [peer]
-                        (-> (get-node-info-for-peer peer)
-                            (send-custom-query "announce_meta" args)))))))
+                        (when-let [destination (get-peer-destination peer)]
+                          (send-meta-links (get-node-info-for-peer peer)
+                                           [link]
+                                           false)
+                          (swap! gossip-state assoc-in
+                                 [destination :sent info-hash-str] time))))
+     ; it may be our own link that just changed
+     (swap! verified-links dissoc info-hash-str))))
+
+(defn get-peer-links
+  "Returns a map of each peer's destination to the peer and the meta links
+  of the persistent torrents it is in."
+  []
+  (let [peer-links (atom {})]
+    (t/iterate-torrents
+      (fn [^Snark torrent]
+        (when (.getPersistent torrent)
+          (let [info-hash-str (f/base32-encode (.getInfoHash torrent))
+                link (get-meta-link info-hash-str)]
+            (t/iterate-peers
+              torrent
+              (fn [peer]
+                (when-let [destination (get-peer-destination peer)]
+                  (swap! peer-links update-in [destination]
+                         (fn [[_ links]]
+                           [peer (assoc links info-hash-str link)])))))))))
+    @peer-links))
+
+(defn gossip-meta-links
+  "Sends each peer the meta links it hasn't gotten from us yet, batched into
+  one query. A peer with nothing new is sent all of them again after a delay
+  that doubles each time, up to max-gossip-backoff intervals."
+  [interval]
+  (let [now (System/currentTimeMillis)
+        peer-links (get-peer-links)]
+    ; forget peers we are no longer connected to
+    (swap! gossip-state select-keys (keys peer-links))
+    (doseq [[destination [peer links]] peer-links]
+      (let [{:keys [sent backoff next-time batch? probed?]
+             :or {sent {} backoff 1 next-time 0}} (get @gossip-state destination)
+            new-links (for [[info-hash-str {:keys [time]}] links
+                            :when (> time (get sent info-hash-str -1))]
+                        info-hash-str)
+            to-send (cond
+                      (seq new-links) new-links
+                      (>= now next-time) (keys links))
+            backoff (if (seq new-links)
+                      2
+                      (min (* 2 backoff) max-gossip-backoff))]
+        (when-not probed?
+          (probe-meta-links (get-node-info-for-peer peer))
+          (swap! gossip-state assoc-in [destination :probed?] true))
+        (when (seq to-send)
+          (send-meta-links (get-node-info-for-peer peer)
+                           (for [info-hash-str to-send]
+                             (get-in links [info-hash-str :link]))
+                           batch?)
+          (swap! gossip-state update-in [destination] merge
+                 {:sent (merge sent (into {} (for [info-hash-str to-send]
+                                               [info-hash-str
+                                                (get-in links [info-hash-str
+                                                               :time])])))
+                  :backoff backoff
+                  :next-time (+ now (* backoff interval))}))))))
 
 (defn send-meta-link-periodically
-  "Sends the relevant meta link to all peers in each user torrent."
+  "Sends the relevant meta links to the peers in each user torrent."
   [seconds]
   (future
     (while true
       (Thread/sleep (* seconds 1000))
-      (t/iterate-torrents (fn [^Snark torrent]
-                            (when (.getPersistent torrent)
-                              (send-meta-link torrent)))))))
+      (try
+        (gossip-meta-links (* seconds 1000))
+        (catch Exception e (println "Error sending meta links" e))))))
 
 ; ingest meta torrents
 
+; the latest ingest started for each user, so an older one that finishes
+; after it doesn't overwrite its rows, manifest and files
+(def ingest-generations (atom {}))
+
 (defn add-user-hash
   "Begins following the supplied user hash if we aren't already."
   [their-hash-bytes]
@@ -96,36 +230,30 @@
   [their-hash-bytes]
   (when (and their-hash-bytes
              (not (c/is-me? their-hash-bytes true))
-             (-> (for [my-user-hash @c/my-hash-list]
-                   (db/get-fav-data {:ptrhash their-hash-bytes} my-user-hash))
-                 (doall)
-                 (flatten)
-                 (count)
-                 (= 0)))
+             (= 0 (db/count-followers their-hash-bytes @c/my-hash-list)))
     (let [^String their-hash-str (f/base32-encode their-hash-bytes)
-          user-dir (c/get-user-dir their-hash-str)]
+          user-dir (c/get-user-dir their-hash-str)
+          ; only the users they follow can lose a follower we care about
+          followed (db/get-followed-hashes their-hash-bytes)]
       (println "Deleting user" their-hash-str)
-      (t/iterate-torrents
-        (fn [^Snark torrent]
-          (when (>= (.indexOf (.getDataDir torrent) their-hash-str) 0)
-            (t/remove-torrent (.getName torrent)))))
+      (doseq [^Snark torrent (t/get-torrents-in-dir user-dir)]
+        (t/remove-torrent (.getName torrent)))
       (io/delete-file-recursively user-dir)
+      (swap! link-cache dissoc their-hash-str)
+      (swap! verified-links dissoc their-hash-str)
+      (swap! pub-keys dissoc their-hash-str)
+      (swap! ingest-generations dissoc their-hash-str)
       (db/delete-user their-hash-bytes)
-      (io/iterate-dir (c/get-user-dir)
-                      #(remove-user-hash (f/base32-decode %))))))
+      (doseq [followed-hash followed]
+        (when (io/file-exists? (c/get-user-dir (f/base32-encode followed-hash)))
+          (remove-user-hash followed-hash))))))
 
 (defn on-recv-fav
   "Add or remove user if necessary based on a fav we received."
   [user-hash ptr-hash status]
   ; if this is from a user we care about
   (when (or (c/is-me? user-hash true)
-            (->> (for [my-user-hash @c/my-hash-list]
-                   (db/get-single-fav-data {:userhash user-hash} my-user-hash))
-                 (doall)
-                 (filter #(= 1 (:status %)))
-                 (count)
-                 (= 0)
-                 (not)))
+            (> (db/count-follows user-hash @c/my-hash-list) 0))
     (case status
       ; if the fav has a status of 0, unfollow them if necessary
       0 (remove-user-hash ptr-hash)
@@ -133,12 +261,9 @@
       1 (add-user-hash ptr-hash)
       nil)))
 
-(defn on-recv-meta-file
-  "Ingests a given file from a meta torrent"
+(defn on-recv-user-fav
+  "Acts on a meta file if it is a fav of a user."
   [user-hash-bytes meta-file]
-  ; insert it into the db
-  (db/insert-meta-data user-hash-bytes meta-file)
-  ; if this is a fav of a user, act on it if necessary
   (let [meta-contents (:contents meta-file)]
     (when (and (= "fav" (:dir-name meta-file))
                (nil? (get meta-contents "ptrtime")))
@@ -146,19 +271,58 @@
                    (f/b-decode-bytes (get meta-contents "ptrhash"))
                    (f/b-decode-long (get meta-contents "status"))))))
 
+(defn on-recv-meta-files
+  "Ingests a list of files from a meta torrent in one batch."
+  [user-hash-bytes meta-files]
+  ; insert them into the db in a single transaction
+  (db/insert-meta-batch user-hash-bytes meta-files)
+  ; act on any favs of users
+  (doseq [meta-file meta-files]
+    (on-recv-user-fav user-hash-bytes meta-file)))
+
+(def read-stage (delay (p/create-stage "ingest.read" 2)))
+(def decode-stage
+  (delay (p/create-stage "ingest.decode"
+                         (.availableProcessors (Runtime/getRuntime)))))
+(def write-stage (delay (p/create-stage "ingest.write" 1)))
+
 (defn on-recv-meta
-  "Ingests all files in a meta torrent."
+  "Ingests all files in a meta torrent by passing them through the read,
+  decode and write stages."
   [^Snark torrent]
   (let [parent-dir (.getParentFile (java.io/file (.getName torrent)))
-        user-hash-bytes (f/base32-decode (.getName parent-dir))
-        paths (.getFiles (.getMetaInfo torrent))]
-    ; iterate over the files in this torrent
-    (doseq [path-leaves paths]
-      (on-recv-meta-file user-hash-bytes
-                         (io/read-meta-file parent-dir path-leaves)))
-    ; remove any files that the torrent no longer contains
-    (when-not (c/is-me? user-hash-bytes true)
-      (io/delete-orphaned-files user-hash-bytes paths))))
+        user-hash-str (.getName parent-dir)
+        user-hash-bytes (f/base32-decode user-hash-str)
+        paths (.getFiles (.getMetaInfo torrent))
+        generation (-> (swap! ingest-generations update-in [user-hash-str]
+                              (fnil inc 0))
+                       (get user-hash-str))
+        current? #(= generation (get @ingest-generations user-hash-str))
+        write-files
+        (fn [meta-files manifest]
+          (when (current?)
+            ; ingest the files that changed since the last time together
+            (when (seq meta-files)
+              (on-recv-meta-files user-hash-bytes meta-files))
+            ; only remember them once they are in the db
+            (io/write-manifest-file user-hash-str manifest)
+            ; remove any files that the torrent no longer contains
+            (when-not (c/is-me? user-hash-bytes true)
+              (io/delete-orphaned-files user-hash-bytes paths))))
+        decode-files
+        (fn [changed-files manifest]
+          (let [meta-files (vec (for [[path data-barray] changed-files]
+                                  (io/decode-meta-file path data-barray)))]
+            (p/submit @write-stage #(write-files meta-files manifest))))
+        read-files
+        (fn []
+          (when (current?)
+            (let [[changed-files manifest]
+                  (->> (io/read-manifest-file user-hash-str)
+                       (io/read-changed-meta-files parent-dir paths))]
+              (p/submit @decode-stage
+                        #(decode-files changed-files manifest)))))]
+    (p/submit @read-stage read-files)))
 
 ; receiving meta links
 
@@ -181,24 +345,41 @@
        :link-hash-str (f/base32-encode link-hash-bytes)
        :time time-num})))
 
+(defn get-pub-key
+  "Returns the public key of a user, only reading it from the disk once."
+  [user-hash-str]
+  (or (get @pub-keys user-hash-str)
+      (when-let [pub-key (io/read-key-file (c/get-user-pub-file user-hash-str))]
+        (swap! pub-keys assoc user-hash-str pub-key)
+        pub-key)))
+
 (defn validate-meta-link
-  "Makes sure a meta link has the required values and signature."
-  [link-map]
-  (and link-map
-       (:time link-map)
-       (<= (:time link-map) (.getTime (java.util.Date.)))
-       (let [user-hash-str (:user-hash-str link-map)
-             pub-key-path (c/get-user-pub-file user-hash-str)]
-         (crypto/verify-signature (io/read-key-file pub-key-path)
-                                  (:sig link-map)
-                                  (:data link-map)))))
+  "Makes sure a meta link has the required values and signature, calling
+  callback with the result from the verify stage. Returns false if the
+  verify stage was too busy to take it."
+  [link-map callback]
+  (if (and link-map
+           (:time link-map)
+           (<= (:time link-map) (.getTime (java.util.Date.))))
+    (crypto/verify-signature-later (get-pub-key (:user-hash-str link-map))
+                                   (:sig link-map)
+                                   (:data link-map)
+                                   callback)
+    (do (callback false)
+        true)))
 
 (defn save-meta-link
   "Saves a meta link to the disk."
   [link-map]
   (let [user-hash-str (:user-hash-str link-map)
         link-path (c/get-meta-link-file user-hash-str)]
-    (io/write-file link-path (:link link-map))))
+    (io/write-file link-path (:link link-map))
+    (swap! link-cache dissoc user-hash-str)
+    ; keep the entry of a newer link accepted while this one was saved
+    (locking verified-links
+      (when (identical? link-map
+                        (:link-map (get @verified-links user-hash-str)))
+        (swap! verified-links dissoc user-hash-str)))))
 
 (defn replace-meta-link
   "Stops sharing a given meta torrent and begins downloading an updated one."
@@ -212,21 +393,111 @@
     (t/add-hash user-dir (:link-hash-str new-link-map) false on-recv-meta)
     (println "Saved meta link")))
 
+(defn get-my-meta-link
+  "Returns the link we have saved for a user and its parsed map, only reading
+  it from the disk when it isn't in memory."
+  [user-hash-str]
+  (if-let [entry (get @verified-links user-hash-str)]
+    (do (p/add-stat "nightweb.metaLink.cacheHit" 1)
+        entry)
+    (let [my-link (io/read-link-file user-hash-str)
+          entry {:link my-link
+                 :link-map (parse-meta-link my-link)}]
+      (p/add-stat "nightweb.metaLink.cacheMiss" 1)
+      (swap! verified-links assoc user-hash-str entry)
+      entry)))
+
+(defn claim-meta-link
+  "Marks a link as being verified, returning false if it already is."
+  [user-hash-str ^bytes digest]
+  (locking verified-links
+    (if-let [entry (get @verified-links user-hash-str)]
+      (when-not (Arrays/equals digest ^bytes (:pending entry))
+        (swap! verified-links assoc user-hash-str (assoc entry :pending digest))
+        true)
+      true)))
+
+(defn release-meta-link
+  "Lets a link that couldn't be verified be claimed again."
+  [user-hash-str]
+  (locking verified-links
+    (when-let [entry (get @verified-links user-hash-str)]
+      (swap! verified-links assoc user-hash-str (dissoc entry :pending)))))
+
+(defn reject-meta-link
+  "Remembers the digest of a link that failed validation so the same link
+  isn't verified again."
+  [user-hash-str digest]
+  (locking verified-links
+    (when-let [entry (get @verified-links user-hash-str)]
+      (swap! verified-links assoc user-hash-str
+             (-> entry (assoc :rejected digest) (dissoc :pending))))))
+
+(def replace-lock (Object.))
+
+(defn accept-meta-link
+  "Replaces our link with a verified one unless a newer one was accepted
+  while it was being verified."
+  [link-map]
+  (let [user-hash-str (:user-hash-str link-map)
+        entry (get-my-meta-link user-hash-str)
+        ; only decide under the lock that the query threads take
+        newer? (locking verified-links
+                 (let [my-time (-> (or (get @verified-links user-hash-str)
+                                       entry)
+                                   :link-map
+                                   :time)]
+                   (when (or (nil? my-time) (> (:time link-map) my-time))
+                     ; answer announcements with it from now on
+                     (swap! verified-links assoc user-hash-str
+                            {:link (f/b-decode-map (f/b-decode (:link link-map)))
+                             :link-map link-map})
+                     true)))]
+    (when newer?
+      (locking replace-lock
+        ; unless an even newer one was accepted before we got here
+        (when (identical? link-map
+                          (:link-map (get @verified-links user-hash-str)))
+          (replace-meta-link user-hash-str
+                             (parse-meta-link (io/read-link-file user-hash-str))
+                             link-map))))))
+
 (defn compare-meta-link
   "Checks if a given meta link is newer than the one we already have."
   [link-map]
-  (let [user-hash-str (:user-hash-str link-map)
-        my-link (io/read-link-file user-hash-str)
-        my-link-map (parse-meta-link my-link)
-        my-time (:time my-link-map)
-        their-time (:time link-map)]
-    (if (not= my-time their-time)
-      (if (validate-meta-link link-map)
-        (if (or (nil? my-time) (> their-time my-time))
-          (replace-meta-link user-hash-str my-link-map link-map)
-          my-link)
-        my-link)
-      (comment "Received identical link"))))
+  (let [user-hash-str (:user-hash-str link-map)]
+    ; without their key it's a user we don't follow, so we have no link of
+    ; theirs and couldn't check one; don't remember anything about them
+    (when (get-pub-key user-hash-str)
+      (let [{my-link :link my-link-map :link-map rejected :rejected}
+            (get-my-meta-link user-hash-str)
+            my-time (:time my-link-map)
+            their-time (:time link-map)
+            ^bytes digest (crypto/create-hash ^bytes (:link link-map))]
+        (cond
+          ; the link we have, or one we already found to be invalid
+          (or (= my-time their-time)
+              (Arrays/equals digest ^bytes rejected))
+          (do (p/add-stat "nightweb.metaLink.duplicate" 1)
+              nil)
+          ; older than ours, so there's no need to check the signature
+          (and my-time (or (nil? their-time) (< their-time my-time)))
+          (do (p/add-stat "nightweb.metaLink.duplicate" 1)
+              my-link)
+          ; newer than ours, so verify it off the query thread
+          (claim-meta-link user-hash-str digest)
+          (do (when-not (validate-meta-link
+                          link-map
+                          (fn [valid?]
+                            (if valid?
+                              (accept-meta-link link-map)
+                              (reject-meta-link user-hash-str digest))))
+                ; too busy, drop it and let a later announcement bring it again
+                (release-meta-link user-hash-str))
+              nil)
+          :else
+          (do (p/add-stat "nightweb.metaLink.duplicate" 1)
+              nil))))))
 
 (defn receive-meta-link
   "Parses and, if necessary, saves a given meta link."
@@ -235,11 +506,52 @@
     (compare-meta-link link)
     (println "Meta link can't be parsed")))
 
+(defn receive-meta-links
+  "Receives a batch of meta links, returning any of ours that are newer.
+  Always returns a reply, even an empty one, so the sender knows we take
+  batches."
+  [args]
+  (let [replies (->> (f/b-decode-list (get args "links"))
+                     (map f/b-decode-map)
+                     (keep receive-meta-link)
+                     (doall))]
+    (doto (java.util.HashMap.)
+      (.put "links" (java.util.ArrayList. ^java.util.Collection replies)))))
+
+(defn receive-meta-links-response
+  "Receives the reply to an announce_metas query, which also tells us the
+  node takes batches."
+  [^NodeInfo node-info args]
+  (when-let [destination (some-> node-info .getDestination)]
+    (swap! gossip-state assoc-in [destination :batch?] true))
+  (receive-meta-links args))
+
 ; initialization
 
+(defn create-stats
+  []
+  (let [stats (.statManager (I2PAppContext/getGlobalContext))
+        periods (long-array [(* 60 1000) (* 60 60 1000)])]
+    (.createRequiredRateStat stats
+                             "nightweb.metaLink.cacheHit"
+                             "How many meta links are compared in memory?"
+                             "Nightweb"
+                             periods)
+    (.createRequiredRateStat stats
+                             "nightweb.metaLink.cacheMiss"
+                             "How many meta links are compared from disk?"
+                             "Nightweb"
+                             periods)
+    (.createRequiredRateStat stats
+                             "nightweb.metaLink.duplicate"
+                             "How many meta links are rejected unverified?"
+                             "Nightweb"
+                             periods)))
+
 (defn init-dht
   "Sets the node keys, query handler, and bootstrap node for DHT."
   []
+  (create-stats)
   ; set the node keys from the disk
   (let [priv-node (io/read-priv-node-key-file)
         pub-node (io/read-pub-node-key-file)]
@@ -252,9 +564,12 @@
       (receiveQuery [this method args]
         (case method
           "announce_meta" (receive-meta-link args)
+          "announce_metas" (receive-meta-links args)
           nil))
-      (receiveResponse [this args]
-        (receive-meta-link args))))
+      (receiveResponse [this node-info args]
+        (if (get args "links")
+          (receive-meta-links-response node-info args)
+          (receive-meta-link args)))))
   ; set the init callback
   (.setDHTInitCallback
     (.util ^SnarkManager @t/manager)
@@ -104,11 +104,12 @@
     (when is-valid?
       (io/write-user-list-file (cons imported-user @c/my-hash-list))
       (load-user imported-user)
-      (doseq [^File f (-> (c/get-meta-dir imported-user-str)
-                          java.io/file
-                          file-seq)]
-        (when (.isFile f)
-          (dht/on-recv-meta-file imported-user
-                                 (io/read-meta-file (.getCanonicalPath f)))))
+      (->> (for [^File f (-> (c/get-meta-dir imported-user-str)
+                             java.io/file
+                             file-seq)
+                 :when (.isFile f)]
+             (io/read-meta-file (.getCanonicalPath f)))
+           (doall)
+           (dht/on-recv-meta-files imported-user))
       (add-user-and-meta-torrents imported-user-str))
     is-valid?))
@@ -20,14 +20,19 @@
 
 package org.klomp.snark;
 
+import java.util.Arrays;
 
 /**
- * Container of a byte array representing set and unset bits.
+ * Container of bits packed into longs, so counting, searching and
+ * intersecting work on 64 bits at a time.
+ * The wire format, as returned by getFieldBytes(), has bit 0 in the
+ * high bit of the first byte.
  */
 public class BitField
 {
 
-  private final byte[] bitfield;
+  /** bit i is bit (i % 64) of word (i / 64), as in java.util.BitSet */
+  private final long[] words;
   private final int size;
   private int count;
 
@@ -37,42 +42,62 @@ public class BitField
   public BitField(int size)
   {
     this.size = size;
-    int arraysize = ((size-1)/8)+1;
-    bitfield = new byte[arraysize];
+    words = new long[Math.max(1, (size + 63) >> 6)];
   }
 
   /**
    * Creates a new BitField that represents <code>size</code> bits
    * as set by the given byte array. This will make a copy of the array.
-   * Extra bytes will be ignored.
+   * Extra bytes, and extra bits in the last byte, will be ignored.
    *
-   * @exception ArrayOutOfBoundsException if give byte array is not large
+   * @exception ArrayIndexOutOfBoundsException if give byte array is not large
    * enough.
    */
   public BitField(byte[] bitfield, int size)
   {
-    this.size = size;
+    this(size);
     int arraysize = ((size-1)/8)+1;
-    this.bitfield = new byte[arraysize];
-    
-    // XXX - More correct would be to check that unused bits are
-    // cleared or clear them explicitly ourselves.
-    System.arraycopy(bitfield, 0, this.bitfield, 0, arraysize);
+    if (bitfield.length < arraysize)
+      throw new ArrayIndexOutOfBoundsException(bitfield.length);
+    for (int i = 0; i < arraysize; i++)
+      {
+        // reverse so the first bit on the wire is the low bit
+        long b = Integer.reverse(bitfield[i] & 0xff) >>> 24;
+        words[i >> 3] |= b << ((i & 7) << 3);
+      }
+    clearUnused();
+    count = countBits();
+  }
 
-    for (int i = 0; i < size; i++)
-      if (get(i))
-        this.count++;
+  /**
+   * Creates a copy of the given BitField.
+   */
+  public BitField(BitField bitfield)
+  {
+    synchronized(bitfield) {
+        size = bitfield.size;
+        words = bitfield.words.clone();
+        count = bitfield.count;
+    }
   }
 
   /**
-   * This returns the actual byte array used.  Changes to this array
-   * effect this BitField.  Note that some bits at the end of the byte
-   * array are supposed to be always unset if they represent bits
-   * bigger then the size of the bitfield.
+   * This returns a copy of the bits in the wire format.
+   * Changes to the array do not effect this BitField.
+   * Bits at the end of the byte array bigger then the size of the
+   * bitfield are always unset.
    */
   public byte[] getFieldBytes()
   {
-    return bitfield;
+    byte[] rv = new byte[((size-1)/8)+1];
+    synchronized(this) {
+        for (int i = 0; i < rv.length; i++)
+          {
+            int b = (int) (words[i >> 3] >>> ((i & 7) << 3)) & 0xff;
+            rv[i] = (byte) (Integer.reverse(b) >>> 24);
+          }
+    }
+    return rv;
   }
 
   /**
@@ -95,12 +120,71 @@ public class BitField
   {
     if (bit < 0 || bit >= size)
       throw new IndexOutOfBoundsException(Integer.toString(bit));
-    int index = bit/8;
-    int mask = 128 >> (bit % 8);
+    long mask = 1L << bit;
     synchronized(this) {
-        if ((bitfield[index] & mask) == 0) {
+        if ((words[bit >> 6] & mask) == 0) {
             count++;
-            bitfield[index] |= mask;
+            words[bit >> 6] |= mask;
+        }
+    }
+  }
+
+  /**
+   * Sets the bits from <code>from</code> (inclusive)
+   * to <code>to</code> (exclusive) to true.
+   *
+   * @exception IndexOutOfBoundsException if the range is not within the BitField.
+   */
+  public void set(int from, int to)
+  {
+    if (from < 0 || to > size || from > to)
+      throw new IndexOutOfBoundsException(from + "-" + to);
+    if (from == to)
+      return;
+    int first = from >> 6;
+    int last = (to - 1) >> 6;
+    long firstMask = -1L << from;
+    long lastMask = -1L >>> -to;
+    synchronized(this) {
+        if (first == last) {
+            words[first] |= firstMask & lastMask;
+        } else {
+            words[first] |= firstMask;
+            for (int i = first + 1; i < last; i++)
+                words[i] = -1L;
+            words[last] |= lastMask;
+        }
+        count = countBits();
+    }
+  }
+
+  /**
+   * Sets all bits to true.
+   */
+  public void setAll()
+  {
+    synchronized(this) {
+        Arrays.fill(words, -1L);
+        clearUnused();
+        count = size;
+    }
+  }
+
+  /**
+   * Sets the given bit to false.
+   *
+   * @exception IndexOutOfBoundsException if bit is smaller then zero
+   * bigger then size (inclusive).
+   */
+  public void clear(int bit)
+  {
+    if (bit < 0 || bit >= size)
+      throw new IndexOutOfBoundsException(Integer.toString(bit));
+    long mask = 1L << bit;
+    synchronized(this) {
+        if ((words[bit >> 6] & mask) != 0) {
+            count--;
+            words[bit >> 6] &= ~mask;
         }
     }
   }
@@ -115,10 +199,128 @@ public class BitField
   {
     if (bit < 0 || bit >= size)
       throw new IndexOutOfBoundsException(Integer.toString(bit));
+    // synchronized as a long may be read in two halves
+    synchronized(this) {
+        return (words[bit >> 6] & (1L << bit)) != 0;
+    }
+  }
+
+  /**
+   * Return the first set bit at or after <code>from</code>,
+   * or -1 if there is none. To go through all the set bits:
+   * <pre>
+   *   for (int i = bf.nextSetBit(0); i >= 0; i = bf.nextSetBit(i + 1))
+   * </pre>
+   *
+   * @exception IndexOutOfBoundsException if from is smaller then zero
+   */
+  public int nextSetBit(int from)
+  {
+    return next(from, false);
+  }
+
+  /**
+   * Return the first unset bit at or after <code>from</code>,
+   * or -1 if there is none.
+   *
+   * @exception IndexOutOfBoundsException if from is smaller then zero
+   */
+  public int nextClearBit(int from)
+  {
+    return next(from, true);
+  }
+
+  private synchronized int next(int from, boolean clear)
+  {
+    if (from < 0)
+      throw new IndexOutOfBoundsException(Integer.toString(from));
+    if (from >= size)
+      return -1;
+    int index = from >> 6;
+    long word = (clear ? ~words[index] : words[index]) & (-1L << from);
+    while (word == 0)
+      {
+        if (++index >= words.length)
+          return -1;
+        word = clear ? ~words[index] : words[index];
+      }
+    int rv = (index << 6) + Long.numberOfTrailingZeros(word);
+    return rv < size ? rv : -1;
+  }
 
-    int index = bit/8;
-    int mask = 128 >> (bit % 8);
-    return (bitfield[index] & mask) != 0;
+  /**
+   * Return a new BitField, the same size as this one, with the bits
+   * that are set in both. Bits past the end of the other are unset.
+   */
+  public BitField and(BitField other)
+  {
+    return combine(other, false);
+  }
+
+  /**
+   * Return a new BitField, the same size as this one, with the bits
+   * that are set in this one but not in the other.
+   */
+  public BitField andNot(BitField other)
+  {
+    return combine(other, true);
+  }
+
+  private BitField combine(BitField other, boolean not)
+  {
+    // copy the other first so we never hold both locks
+    long[] o = other.copyWords();
+    BitField rv = new BitField(size);
+    synchronized(this) {
+        for (int i = 0; i < words.length; i++)
+          {
+            long ow = i < o.length ? o[i] : 0;
+            rv.words[i] = words[i] & (not ? ~ow : ow);
+          }
+    }
+    rv.clearUnused();
+    rv.count = rv.countBits();
+    return rv;
+  }
+
+  /**
+   * Return true if any bit is set in both.
+   */
+  public boolean intersects(BitField other)
+  {
+    long[] o = other.copyWords();
+    synchronized(this) {
+        int len = Math.min(words.length, o.length);
+        for (int i = 0; i < len; i++)
+          {
+            if ((words[i] & o[i]) != 0)
+              return true;
+          }
+    }
+    return false;
+  }
+
+  private synchronized long[] copyWords()
+  {
+    return words.clone();
+  }
+
+  /** caller must synchronize */
+  private int countBits()
+  {
+    int rv = 0;
+    for (int i = 0; i < words.length; i++)
+      rv += Long.bitCount(words[i]);
+    return rv;
+  }
+
+  /** Clears the bits past the end, caller must synchronize */
+  private void clearUnused()
+  {
+    if ((size & 63) != 0)
+      words[words.length - 1] &= -1L >>> -size;
+    else if (size == 0)
+      words[0] = 0;
   }
 
   /**
@@ -140,15 +342,13 @@ public class BitField
     @Override
   public String toString()
   {
-    // Not very efficient
     StringBuilder sb = new StringBuilder("BitField(");
     sb.append(size).append(")[");
-    for (int i = 0; i < size; i++)
-      if (get(i))
-        {
-          sb.append(' ');
-          sb.append(i);
-        }
+    for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1))
+      {
+        sb.append(' ');
+        sb.append(i);
+      }
     sb.append(" ]");
 
     return sb.toString();
@@ -57,4 +57,12 @@ public interface CompleteListener {
     // not really listeners but the easiest way to get back to an optional SnarkManager
     public long getSavedTorrentTime(Snark snark);
     public BitField getSavedTorrentBitField(Snark snark);
+
+    /**
+     * The last modified time of each file when the status was saved,
+     * so that only changed files need to be rechecked.
+     *
+     * @return null if unknown
+     */
+    public long[] getSavedFileTimes(Snark snark);
 }
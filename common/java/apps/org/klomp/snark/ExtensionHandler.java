@@ -62,28 +62,34 @@ abstract class ExtensionHandler {
         return BEncoder.bencode(handshake);
     }
 
-    public static void handleMessage(Peer peer, PeerListener listener, int id, byte[] bs) {
+    /**
+     *  Parses the message in place.
+     *
+     *  @param bs only valid during the call, nothing may keep a reference to it
+     *  @param length the length of the message in the array
+     */
+    public static void handleMessage(Peer peer, PeerListener listener, int id, byte[] bs, int length) {
         Log log = I2PAppContext.getGlobalContext().logManager().getLog(ExtensionHandler.class);
         if (log.shouldLog(Log.INFO))
-            log.info("Got extension msg " + id + " length " + bs.length + " from " + peer);
+            log.info("Got extension msg " + id + " length " + length + " from " + peer);
         if (id == ID_HANDSHAKE)
-            handleHandshake(peer, listener, bs, log);
+            handleHandshake(peer, listener, bs, length, log);
         else if (id == ID_METADATA)
-            handleMetadata(peer, listener, bs, log);
+            handleMetadata(peer, listener, bs, length, log);
         else if (id == ID_PEX)
-            handlePEX(peer, listener, bs, log);
+            handlePEX(peer, listener, bs, length, log);
         else if (id == ID_DHT)
-            handleDHT(peer, listener, bs, log);
+            handleDHT(peer, listener, bs, length, log);
         else if (log.shouldLog(Log.INFO))
             log.info("Unknown extension msg " + id + " from " + peer);
     }
 
-    private static void handleHandshake(Peer peer, PeerListener listener, byte[] bs, Log log) {
+    private static void handleHandshake(Peer peer, PeerListener listener, byte[] bs, int length, Log log) {
         if (log.shouldLog(Log.DEBUG))
             log.debug("Got handshake msg from " + peer);
         try {
             // this throws NPE on missing keys
-            InputStream is = new ByteArrayInputStream(bs);
+            InputStream is = new ByteArrayInputStream(bs, 0, length);
             BDecoder dec = new BDecoder(is);
             BEValue bev = dec.bdecodeMap();
             Map<String, BEValue> map = bev.getMap();
@@ -186,11 +192,11 @@ abstract class ExtensionHandler {
      * REF: BEP 9
      * @since 0.8.4
      */
-    private static void handleMetadata(Peer peer, PeerListener listener, byte[] bs, Log log) {
+    private static void handleMetadata(Peer peer, PeerListener listener, byte[] bs, int length, Log log) {
         if (log.shouldLog(Log.DEBUG))
             log.debug("Got metadata msg from " + peer);
         try {
-            InputStream is = new ByteArrayInputStream(bs);
+            InputStream is = new ByteArrayInputStream(bs, 0, length);
             BDecoder dec = new BDecoder(is);
             BEValue bev = dec.bdecodeMap();
             Map<String, BEValue> map = bev.getMap();
@@ -226,7 +232,7 @@ abstract class ExtensionHandler {
                     }
                     peer.downloaded(len);
                     listener.downloaded(peer, len);
-                    done = state.saveChunk(piece, bs, bs.length - len, len);
+                    done = state.saveChunk(piece, bs, length - len, len);
                     if (log.shouldLog(Log.INFO))
                         log.info("Got chunk " + piece + " from " + peer);
                     if (!done)
@@ -317,11 +323,11 @@ abstract class ExtensionHandler {
      * added.f and dropped unsupported
      * @since 0.8.4
      */
-    private static void handlePEX(Peer peer, PeerListener listener, byte[] bs, Log log) {
+    private static void handlePEX(Peer peer, PeerListener listener, byte[] bs, int length, Log log) {
         if (log.shouldLog(Log.DEBUG))
             log.debug("Got PEX msg from " + peer);
         try {
-            InputStream is = new ByteArrayInputStream(bs);
+            InputStream is = new ByteArrayInputStream(bs, 0, length);
             BDecoder dec = new BDecoder(is);
             BEValue bev = dec.bdecodeMap();
             Map<String, BEValue> map = bev.getMap();
@@ -354,11 +360,11 @@ abstract class ExtensionHandler {
      * Receive the DHT port numbers
      * @since DHT
      */
-    private static void handleDHT(Peer peer, PeerListener listener, byte[] bs, Log log) {
+    private static void handleDHT(Peer peer, PeerListener listener, byte[] bs, int length, Log log) {
         if (log.shouldLog(Log.DEBUG))
             log.debug("Got DHT msg from " + peer);
         try {
-            InputStream is = new ByteArrayInputStream(bs);
+            InputStream is = new ByteArrayInputStream(bs, 0, length);
             BDecoder dec = new BDecoder(is);
             BEValue bev = dec.bdecodeMap();
             Map<String, BEValue> map = bev.getMap();
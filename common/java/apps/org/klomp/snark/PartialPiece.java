@@ -26,8 +26,11 @@ import net.i2p.util.SecureFile;
  * a piece is not completely downloaded, for example
  * when the Peer disconnects or chokes.
  *
- * New objects for the same piece are created during the end game -
- * this object should not be shared among multiple peers.
+ * During the end game the same object is shared among the peers
+ * getting the piece. It keeps track of which chunks have been received
+ * and how many peers are requesting each one, so each peer only asks for
+ * the chunks that are still missing, and counts its holders so the data
+ * is released when the last one is done with it.
  *
  * @since 0.8.2
  */
@@ -37,12 +40,25 @@ class PartialPiece implements Comparable {
     private final Piece piece;
     // null if using temp file
     private final byte[] bs;
-    private int off;
+    /** chunks of PeerState.PARTSIZE that are in */
+    private final BitField received;
+    /** chunks that a peer has claimed and is reading right now */
+    private final BitField receiving;
+    /** how many peers are requesting each chunk */
+    private final byte[] requests;
+    /** holders that will call release(), starting with the creator */
+    private int refs = 1;
+    /** set when one of the holders has passed it on to be stored */
+    private boolean claimed;
     //private final long createdTime;
     private File tempfile;
     private RandomAccessFile raf;
     private final int pclen;
     private final File tempDir;
+    // SHA1 of the first 'hashed' bytes, updated as the chunks arrive in order,
+    // null once they arrive out of order
+    private MessageDigest sha1;
+    private int hashed;
 
     private static final int BUFSIZE = PeerState.PARTSIZE;
     private static final ByteCache _cache = ByteCache.getInstance(16, BUFSIZE);
@@ -66,6 +82,11 @@ class PartialPiece implements Comparable {
         this.pclen = len;
         //this.createdTime = 0;
         this.tempDir = tempDir;
+        this.sha1 = SHA1.getInstance();
+        int chunks = ((len - 1) / PeerState.PARTSIZE) + 1;
+        this.received = new BitField(chunks);
+        this.receiving = new BitField(chunks);
+        this.requests = new byte[chunks];
 
         // temps for finals
         byte[] tbs = null;
@@ -107,12 +128,41 @@ class PartialPiece implements Comparable {
     }
 
     /**
-     *  Convert this PartialPiece to a request for the next chunk.
+     *  A request for the first chunk at or after the offset that hasn't
+     *  been received, preferring one that nobody else is requesting.
+     *  Counts the request until it is received or unrequest() is called.
      *  Used by PeerState only.
+     *
+     *  @param offset where to start looking, to walk the piece once per peer
+     *  @return null if every chunk at or after the offset is in
      */
+    public synchronized Request getRequest(int offset) {
+        int first = offset / PeerState.PARTSIZE;
+        int chunk = -1;
+        for (int i = received.nextClearBit(first); i >= 0; i = received.nextClearBit(i + 1)) {
+            if (requests[i] == 0) {
+                chunk = i;
+                break;
+            }
+            if (chunk < 0)
+                chunk = i;
+        }
+        if (chunk < 0)
+            return null;
+        if (requests[chunk] < Byte.MAX_VALUE)
+            requests[chunk]++;
+        int off = chunk * PeerState.PARTSIZE;
+        return new Request(this, off, Math.min(this.pclen - off, PeerState.PARTSIZE));
+    }
 
-    public Request getRequest() {
-        return new Request(this, this.off, Math.min(this.pclen - this.off, PeerState.PARTSIZE));
+    /**
+     *  The request for the chunk at this offset was cancelled or
+     *  the peer is gone.
+     */
+    public synchronized void unrequest(int offset) {
+        int chunk = offset / PeerState.PARTSIZE;
+        if (requests[chunk] > 0)
+            requests[chunk]--;
     }
 
     /** piece number */
@@ -128,18 +178,45 @@ class PartialPiece implements Comparable {
     }
 
     /**
-     *  How many bytes are good - only valid by setDownloaded()
+     *  How many bytes have been received
      */
-    public int getDownloaded() {
-         return this.off;
+    public synchronized int getDownloaded() {
+         int rv = received.count() * PeerState.PARTSIZE;
+         int last = received.size() - 1;
+         if (received.get(last))
+             rv -= (last + 1) * PeerState.PARTSIZE - pclen;
+         return rv;
     }
 
     /**
-     *  Call this before returning a PartialPiece to the PeerCoordinator
-     *  @since 0.9.1
+     *  Has every chunk been received?
+     */
+    public synchronized boolean isComplete() {
+         return received.complete();
+    }
+
+    /**
+     *  Only one of the peers that shares a complete piece may pass it on.
+     *
+     *  @return true the first time it is called once the piece is complete
+     */
+    public synchronized boolean claimComplete() {
+         if (claimed || !received.complete())
+             return false;
+         claimed = true;
+         return true;
+    }
+
+    /**
+     *  Add a holder, for another peer to share this piece in the end game.
+     *
+     *  @return false if it has already been released by everyone
      */
-    public void setDownloaded(int offset) {
-         this.off = offset;
+    public synchronized boolean acquire() {
+         if (refs <= 0)
+             return false;
+         refs++;
+         return true;
     }
 
 /****
@@ -148,12 +225,40 @@ class PartialPiece implements Comparable {
     }
 ****/
 
+    /**
+     *  Adds a chunk to the running hash if it continues where the last one
+     *  ended. Anything else means the hash has to be computed from the
+     *  stored data at the end.
+     *
+     *  @param off offset in the piece
+     */
+    private synchronized void updateHash(byte[] data, int dataOff, int off, int len) {
+        if (sha1 == null)
+            return;
+        if (off == hashed) {
+            sha1.update(data, dataOff, len);
+            hashed += len;
+        } else {
+            // read() lets only one copy of each chunk in, so this is out of order
+            sha1 = null;
+        }
+    }
+
     /**
      *  Piece must be complete.
      *  The SHA1 hash of the completely read data.
+     *  Free if the chunks arrived in order, otherwise reads the data back.
      *  @since 0.9.1
      */
     public byte[] getHash() throws IOException {
+        synchronized (this) {
+            if (sha1 != null && hashed == pclen) {
+                byte[] rv = sha1.digest();
+                sha1 = null;
+                return rv;
+            }
+            sha1 = null;
+        }
         MessageDigest sha1 = SHA1.getInstance();
         if (bs != null) {
             sha1.update(bs);
@@ -191,31 +296,70 @@ class PartialPiece implements Comparable {
     
     /**
      *  Blocking.
+     *  A chunk that another peer already sent, or is sending right now,
+     *  is read and thrown away, so only one copy ever gets stored and hashed.
      *  @since 0.9.1
      */
     public void read(DataInputStream din, int off, int len) throws IOException {
-        if (bs != null) {
-            din.readFully(bs, off, len);
-        } else {
-            // read in fully before synching on raf
-            ByteArray ba;
-            byte[] tmp;
-            if (len == BUFSIZE) {
-                ba = _cache.acquire();
-                tmp = ba.getData();
+        int chunk = off / PeerState.PARTSIZE;
+        boolean dup;
+        synchronized (this) {
+            // or everybody is done with it
+            dup = received.get(chunk) || receiving.get(chunk) || refs <= 0;
+            if (!dup)
+                receiving.set(chunk);
+        }
+        if (dup) {
+            ByteArray ba = _cache.acquire();
+            byte[] tmp = ba.getData();
+            try {
+                for (int rcvd = 0; rcvd < len; rcvd += tmp.length) {
+                    din.readFully(tmp, 0, Math.min(tmp.length, len - rcvd));
+                }
+            } finally {
+                _cache.release(ba, false);
+            }
+            return;
+        }
+        boolean ok = false;
+        try {
+            if (bs != null) {
+                din.readFully(bs, off, len);
+                updateHash(bs, off, off, len);
             } else {
-                ba = null;
-                tmp = new byte[len];
+                // read in fully before synching on raf
+                // chunks are never bigger than BUFSIZE, the last one may be smaller
+                ByteArray ba;
+                byte[] tmp;
+                if (len <= BUFSIZE) {
+                    ba = _cache.acquire();
+                    tmp = ba.getData();
+                } else {
+                    ba = null;
+                    tmp = new byte[len];
+                }
+                try {
+                    din.readFully(tmp, 0, len);
+                    synchronized (this) {
+                        if (raf == null)
+                            createTemp();
+                        raf.seek(off);
+                        raf.write(tmp, 0, len);
+                        updateHash(tmp, 0, off, len);
+                    }
+                } finally {
+                    if (ba != null)
+                        _cache.release(ba, false);
+                }
             }
-            din.readFully(tmp);
+            ok = true;
+        } finally {
             synchronized (this) {
-                if (raf == null)
-                    createTemp();
-                raf.seek(off);
-                raf.write(tmp);
+                // let another peer send it if we didn't get it all
+                receiving.clear(chunk);
+                if (ok)
+                    received.set(chunk);
             }
-            if (ba != null)
-                _cache.release(ba, false);
         }
     }
 
@@ -261,19 +405,23 @@ class PartialPiece implements Comparable {
     }
     
     /**
-     *  Release all resources.
+     *  Drop a holder, and release all resources when it was the last one.
+     *  Every holder must call this exactly once.
      *
      *  @since 0.9.1
      */
-    public void release() {
-        if (bs == null) {
-            synchronized (this) {
-                if (raf != null)
-                    locked_release();
-            }
-            //if (raf != null)
-            //    I2PAppContext.getGlobalContext().logManager().getLog(PartialPiece.class).warn("Released " + tempfile);
-        }
+    public synchronized void release() {
+        if (--refs == 0 && raf != null)
+            locked_release();
+        //if (raf != null)
+        //    I2PAppContext.getGlobalContext().logManager().getLog(PartialPiece.class).warn("Released " + tempfile);
+    }
+
+    /**
+     *  Is more than one peer holding this?
+     */
+    public synchronized boolean isShared() {
+        return refs > 1;
     }
     
     /**
@@ -300,7 +448,7 @@ class PartialPiece implements Comparable {
         int d = this.piece.compareTo(opp.piece);
         if (d != 0)
             return d;
-        return opp.off - this.off;  // reverse
+        return opp.getDownloaded() - this.getDownloaded();  // reverse
     }
     
     @Override
@@ -323,6 +471,6 @@ class PartialPiece implements Comparable {
 
     @Override
     public String toString() {
-        return "Partial(" + piece.getId() + ',' + off + ',' + pclen + ')';
+        return "Partial(" + piece.getId() + ',' + getDownloaded() + ',' + pclen + ')';
     }
 }
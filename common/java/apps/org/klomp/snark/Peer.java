@@ -295,7 +295,7 @@ public class Peer implements Comparable
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Start running the reader with " + toString());
         // Use this thread for running the incomming connection.
-        // The outgoing connection creates its own Thread.
+        // The outgoing connection is sent by the shared PeerSender threads.
         out.startup();
         Thread.currentThread().setName("Snark reader from " + peerID);
         s.in.run();
@@ -464,7 +464,7 @@ public class Peer implements Comparable
         if (this.deregister) {
           PeerListener p = s.listener;
           if (p != null) {
-            List<Request> pcs = s.returnPartialPieces();
+            List<PartialPiece> pcs = s.returnPartialPieces();
             if (!pcs.isEmpty())
                 p.savePartialPieces(this, pcs);
             // now covered by savePartialPieces
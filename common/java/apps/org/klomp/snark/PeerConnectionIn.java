@@ -24,6 +24,8 @@ import java.io.DataInputStream;
 import java.io.IOException;
 
 import net.i2p.I2PAppContext;
+import net.i2p.data.ByteArray;
+import net.i2p.util.ByteCache;
 import net.i2p.util.Log;
 
 class PeerConnectionIn implements Runnable
@@ -39,6 +41,10 @@ class PeerConnectionIn implements Runnable
   private static final int MAX_MSG_SIZE = Math.max(PeerState.PARTSIZE + 9,
                                                    MagnetState.CHUNK_SIZE + 100);  // 100 for the ext msg dictionary
 
+  // Bitfield and extension messages are read into these and handled in place.
+  // Piece data goes straight into the PartialPiece.
+  private static final ByteCache _cache = ByteCache.getInstance(16, MAX_MSG_SIZE);
+
   private Thread thread;
   private volatile boolean quit;
 
@@ -98,8 +104,7 @@ class PeerConnectionIn implements Runnable
               }
             
             byte b = din.readByte();
-            Message m = new Message();
-            m.type = b;
+            ByteArray ba;
             switch (b)
               {
               case 0:
@@ -129,9 +134,13 @@ class PeerConnectionIn implements Runnable
                     _log.debug("Received havePiece(" + piece + ") from " + peer);
                 break;
               case 5:
-                byte[] bitmap = new byte[i-1];
-                din.readFully(bitmap);
-                ps.bitfieldMessage(bitmap);
+                ba = _cache.acquire();
+                try {
+                    din.readFully(ba.getData(), 0, i-1);
+                    ps.bitfieldMessage(ba.getData(), i-1);
+                } finally {
+                    _cache.release(ba, false);
+                }
                 if (_log.shouldLog(Log.DEBUG)) 
                     _log.debug("Received bitmap from " + peer  + ": size=" + (i-1) /* + ": " + ps.bitfield */ );
                 break;
@@ -181,16 +190,21 @@ class PeerConnectionIn implements Runnable
                 break;
               case 20:  // Extension message
                 int id = din.readUnsignedByte();
-                byte[] payload = new byte[i-2];
-                din.readFully(payload);
-                if (_log.shouldLog(Log.DEBUG)) 
-                    _log.debug("Received extension message from " + peer);
-                ps.extensionMessage(id, payload);
+                ba = _cache.acquire();
+                try {
+                    din.readFully(ba.getData(), 0, i-2);
+                    if (_log.shouldLog(Log.DEBUG)) 
+                        _log.debug("Received extension message from " + peer);
+                    ps.extensionMessage(id, ba.getData(), i-2);
+                } finally {
+                    _cache.release(ba, false);
+                }
                 break;
               default:
-                byte[] bs = new byte[i-1];
-                din.readFully(bs);
-                ps.unknownMessage(b, bs);
+                int rcvd = din.skipBytes(i-1);
+                if (rcvd != i-1)
+                    throw new IOException("EOF reading unknown message");
+                ps.unknownMessage(b, i-1);
                 if (_log.shouldLog(Log.DEBUG)) 
                     _log.debug("Received unknown message from " + peer);
               }
@@ -27,6 +27,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 //import net.i2p.util.SimpleScheduler;
@@ -38,11 +39,19 @@ class PeerConnectionOut implements Runnable
   private final Peer peer;
   private final DataOutputStream dout;
 
-  private Thread thread;
   private boolean quit;
+  /** startup() was called, messages queued before that wait for it */
+  private boolean started;
+  /** queued on or running in the PeerSender */
+  private boolean scheduled;
+  /** when the write that is blocking now started, or 0 */
+  private volatile long writeStarted;
 
   // Contains Messages.
   private final List<Message> sendQueue = new ArrayList();
+
+  /** send this many messages per run before letting other peers have a turn */
+  private static final int MAX_BATCH = 8;
   
   private static long __id = 0;
   private long _id;
@@ -60,53 +69,73 @@ class PeerConnectionOut implements Runnable
   }
   
   public void startup() {
-    thread = new I2PAppThread(this, "Snark sender " + _id + ": " + peer);
-    thread.start();
+    PeerSender.getInstance().add(this);
+    synchronized(sendQueue)
+      {
+        started = true;
+        locked_schedule();
+      }
+  }
+
+  /**
+   * Hands us to the PeerSender if there is something to send
+   * and we aren't already waiting for it or running.
+   * Caller must synchronize on sendQueue.
+   */
+  private void locked_schedule()
+  {
+    if (started && !scheduled && !quit && !sendQueue.isEmpty())
+      {
+        scheduled = true;
+        PeerSender.getInstance().execute(this);
+      }
   }
 
   /**
-   * Continuesly monitors for more outgoing messages that have to be send.
-   * Stops if quit is true of an IOException occurs.
+   * Sends queued messages until the queue is empty, then flushes and
+   * returns until the next message is queued.
+   * Disconnects the peer if quit is true or an IOException occurs.
    */
   public void run()
   {
+    boolean done = false;
+    boolean flushed = false;
+    int sent = 0;
     try
       {
-        while (!quit && peer.isConnected())
+        while (true)
           {
             Message m = null;
             PeerState state = null;
-            boolean shouldFlush;
             synchronized(sendQueue)
               {
-                shouldFlush = !quit && peer.isConnected() && sendQueue.isEmpty();
-              }
-            if (shouldFlush)
-                // Make sure everything will reach the other side.
-                // flush while not holding lock, could take a long time
-                dout.flush();
-
-            synchronized(sendQueue)
-              {
-                while (!quit && peer.isConnected() && sendQueue.isEmpty())
+                if (quit || !peer.isConnected())
                   {
-                    try
-                      {
-                        // Make sure everything will reach the other side.
-                        // don't flush while holding lock, could take a long time
-                        // dout.flush();
-                        
-                        // Wait till more data arrives.
-                        sendQueue.wait(60*1000);
-                      }
-                    catch (InterruptedException ie)
+                    done = true;
+                    return;
+                  }
+                if (sendQueue.isEmpty())
+                  {
+                    if (flushed)
                       {
-                        /* ignored */
+                        scheduled = false;
+                        return;
                       }
                   }
-                state = peer.state;
-                if (!quit && state != null && peer.isConnected())
+                else if (sent >= MAX_BATCH)
                   {
+                    // to the back of the line, still scheduled
+                    PeerSender.getInstance().execute(this);
+                    return;
+                  }
+                else
+                  {
+                    state = peer.state;
+                    if (state == null)
+                      {
+                        done = true;
+                        return;
+                      }
                     // Piece messages are big. So if there are other
                     // (control) messages make sure they are send first.
                     // Also remove request messages from the queue if
@@ -114,7 +143,7 @@ class PeerConnectionOut implements Runnable
                     // being send even if we get unchoked a little later.
                     // (Since we will resent them anyway in that case.)
                     // And remove piece messages if we are choking.
-                    
+
                     // this should get fixed for starvation
                     Iterator it = sendQueue.iterator();
                     while (m == null && it.hasNext())
@@ -134,7 +163,7 @@ class PeerConnectionOut implements Runnable
                             //SimpleTimer.getInstance().removeEvent(nm.expireEvent);
                             nm = null;
                           }
-                          
+
                         if (m == null && nm != null)
                           {
                             m = nm;
@@ -148,74 +177,112 @@ class PeerConnectionOut implements Runnable
                     }
                   }
               }
-            if (m != null)
+            if (m == null)
               {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Send " + peer + ": " + m);
-
-                // This can block for quite a while.
-                // To help get slow peers going, and track the bandwidth better,
-                // move this _after_ state.uploaded() and see how it works.
-                //m.sendMessage(dout);
-                lastSent = System.currentTimeMillis();
-
-                // Remove all piece messages after sending a choke message.
-                if (m.type == Message.CHOKE)
-                  removeMessage(Message.PIECE);
-
-                // XXX - Should also register overhead...
-                // Don't let other clients requesting big chunks get an advantage
-                // when we are seeding;
-                // only count the rest of the upload after sendMessage().
-                int remainder = 0;
-                if (m.type == Message.PIECE) {
-                  if (m.len <= PeerState.PARTSIZE) {
-                     state.uploaded(m.len);
-                  } else {
-                     state.uploaded(PeerState.PARTSIZE);
-                     remainder = m.len - PeerState.PARTSIZE;
-                  }
-                }
+                // Make sure everything will reach the other side.
+                // flush while not holding lock, could take a long time
+                writeStarted = System.currentTimeMillis();
+                dout.flush();
+                writeStarted = 0;
+                flushed = true;
+                continue;
+              }
 
-                m.sendMessage(dout);
-                if (remainder > 0)
-                  state.uploaded(remainder);
-                m = null;
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Send " + peer + ": " + m);
+
+            // This can block for quite a while.
+            // To help get slow peers going, and track the bandwidth better,
+            // move this _after_ state.uploaded() and see how it works.
+            //m.sendMessage(dout);
+            lastSent = System.currentTimeMillis();
+
+            // Remove all piece messages after sending a choke message.
+            if (m.type == Message.CHOKE)
+              removeMessage(Message.PIECE);
+
+            // XXX - Should also register overhead...
+            // Don't let other clients requesting big chunks get an advantage
+            // when we are seeding;
+            // only count the rest of the upload after sendMessage().
+            int remainder = 0;
+            if (m.type == Message.PIECE) {
+              if (m.len <= PeerState.PARTSIZE) {
+                 state.uploaded(m.len);
+              } else {
+                 state.uploaded(PeerState.PARTSIZE);
+                 remainder = m.len - PeerState.PARTSIZE;
               }
+            }
+
+            writeStarted = System.currentTimeMillis();
+            m.sendMessage(dout);
+            writeStarted = 0;
+            if (remainder > 0)
+              state.uploaded(remainder);
+            flushed = false;
+            sent++;
           }
       }
     catch (IOException ioe)
       {
+        done = true;
         // Ignore, probably other side closed connection.
         if (_log.shouldLog(Log.INFO))
             _log.info("IOError sending to " + peer, ioe);
       }
     catch (Throwable t)
       {
+        done = true;
         _log.error("Error sending to " + peer, t);
         if (t instanceof OutOfMemoryError)
             throw (OutOfMemoryError)t;
       }
     finally
       {
-        quit = true;
-        peer.disconnect();
+        if (done)
+          {
+            quit = true;
+            peer.disconnect();
+          }
       }
   }
 
+  /**
+   * Disconnects the peer if a write to it has been blocked since before
+   * the cutoff, so it doesn't keep a PeerSender thread from the others.
+   * The disconnect closes the stream, which can block too, so it gets a
+   * thread of its own.
+   *
+   * @return true if it did
+   */
+  boolean disconnectIfStalled(long cutoff)
+  {
+    long started = writeStarted;
+    if (started <= 0 || started >= cutoff)
+      return false;
+    writeStarted = 0;
+    if (_log.shouldLog(Log.WARN))
+      _log.warn("Disconnecting peer with a write stalled for " +
+                DataHelper.formatDuration(System.currentTimeMillis() - started) + ": " + peer);
+    new I2PAppThread(new Runnable() {
+        public void run() {
+            peer.disconnect();
+        }
+    }, "Snark sender disconnect", true).start();
+    return true;
+  }
+
   public void disconnect()
   {
+    PeerSender.getInstance().remove(this);
     synchronized(sendQueue)
       {
         //if (quit == true)
         //  return;
-        
+
         quit = true;
-        if (thread != null)
-            thread.interrupt();
-        
         sendQueue.clear();
-        sendQueue.notify();
       }
     if (dout != null) {
         try {
@@ -227,15 +294,14 @@ class PeerConnectionOut implements Runnable
   }
 
   /**
-   * Adds a message to the sendQueue and notifies the method waiting
-   * on the sendQueue to change.
+   * Adds a message to the sendQueue and gets it sent.
    */
   private void addMessage(Message m)
   {
     synchronized(sendQueue)
       {
         sendQueue.add(m);
-        sendQueue.notifyAll();
+        locked_schedule();
       }
   }
   
@@ -284,7 +350,6 @@ class PeerConnectionOut implements Runnable
                 removed = true;
               }
           }
-        sendQueue.notifyAll();
       }
     return removed;
   }
@@ -298,7 +363,7 @@ class PeerConnectionOut implements Runnable
       {
         if(sendQueue.isEmpty())
           sendQueue.add(m);
-        sendQueue.notifyAll();
+        locked_schedule();
       }
   }
 
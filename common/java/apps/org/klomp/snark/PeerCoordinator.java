@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -114,10 +115,9 @@ class PeerCoordinator implements PeerListener
   private final byte[] id;
   private final byte[] infohash;
 
-  /** The wanted pieces. We could use a TreeSet but we'd have to clear and re-add everything
-   *  when priorities change.
+  /** The wanted pieces, indexed by priority and rarity. Also the lock for partialPieces.
    */
-  private final List<Piece> wantedPieces;
+  private final PiecePicker wantedPieces;
 
   /** The total number of bytes in wantedPieces, or -1 if not yet known.
    *  Sync on wantedPieces.
@@ -128,6 +128,13 @@ class PeerCoordinator implements PeerListener
   /** partial pieces - lock by synching on wantedPieces - TODO store Requests, not PartialPieces */
   private final List<PartialPiece> partialPieces;
 
+  /**
+   *  Pieces being downloaded, so that in the end game peers share
+   *  one PartialPiece and only ask for the chunks that are missing.
+   *  Lock by synching on wantedPieces.
+   */
+  private final Map<Integer, PartialPiece> activePieces;
+
   private volatile boolean halted;
 
   private final MagnetState magnetState;
@@ -154,9 +161,10 @@ class PeerCoordinator implements PeerListener
     this.listener = listener;
     this.snark = torrent;
 
-    wantedPieces = new ArrayList();
+    wantedPieces = new PiecePicker();
     setWantedPieces();
     partialPieces = new ArrayList(getMaxConnections() + 1);
+    activePieces = new HashMap<Integer, PartialPiece>();
     peers = new LinkedBlockingQueue();
     magnetState = new MagnetState(infohash, metainfo);
     pexPeers = new ConcurrentHashSet();
@@ -200,19 +208,23 @@ class PeerCoordinator implements PeerListener
           BitField bitfield = storage.getBitField();
           int[] pri = storage.getPiecePriorities();
           long count = 0;
-          for (int i = 0; i < metainfo.getPieces(); i++) {
+          List<Piece> toAdd = new ArrayList<Piece>();
+          for (int i = bitfield.nextClearBit(0); i >= 0; i = bitfield.nextClearBit(i + 1)) {
               // only add if we don't have and the priority is >= 0
-              if ((!bitfield.get(i)) &&
-                  (pri == null || pri[i] >= 0)) {
+              if (pri == null || pri[i] >= 0) {
                   Piece p = new Piece(i);
                   if (pri != null)
                       p.setPriority(pri[i]);
-                  wantedPieces.add(p);
+                  toAdd.add(p);
                   count += metainfo.getPieceLength(i);
               }
           }
           wantedBytes = count;
-          Collections.shuffle(wantedPieces, _random);
+          // equally rare pieces are picked in the order they were added
+          Collections.shuffle(toAdd, _random);
+          for (Piece p : toAdd) {
+              wantedPieces.add(p);
+          }
       }
   }
 
@@ -441,11 +453,13 @@ class PeerCoordinator implements PeerListener
         removePeerFromPieces(peer);
     }
     // delete any saved orphan partial piece
-    synchronized (partialPieces) {
+    synchronized (wantedPieces) {
         for (PartialPiece pp : partialPieces) {
             pp.release();
         }
         partialPieces.clear();
+        wantedPieces.clearPartials();
+        activePieces.clear();
     }
   }
 
@@ -462,9 +476,7 @@ class PeerCoordinator implements PeerListener
     }
     // failsafe
     synchronized(wantedPieces) {
-        for (Piece pc : wantedPieces) {
-            pc.clear();
-        }
+        wantedPieces.clearPeers();
     }
     timer.schedule((CHECK_PERIOD / 2) + _random.nextInt((int) CHECK_PERIOD));
   }
@@ -670,13 +682,11 @@ class PeerCoordinator implements PeerListener
     //  listener.peerChange(this, peer);
 
     synchronized(wantedPieces) {
-        for (Piece pc : wantedPieces) {
-            if (pc.getId() == piece) {
-                pc.addPeer(peer);
-                return true;
-            }
-        }
-        return false;
+        Piece pc = wantedPieces.get(piece);
+        if (pc == null)
+            return false;
+        wantedPieces.addPeer(pc, peer);
+        return true;
     }
   }
 
@@ -691,10 +701,10 @@ class PeerCoordinator implements PeerListener
 
     boolean rv = false;
     synchronized(wantedPieces) {
-        for (Piece p : wantedPieces) {
-            int i = p.getId();
-            if (bitfield.get(i)) {
-              p.addPeer(peer);
+        for (int i = bitfield.nextSetBit(0); i >= 0; i = bitfield.nextSetBit(i + 1)) {
+            Piece p = wantedPieces.get(i);
+            if (p != null) {
+              wantedPieces.addPeer(p, peer);
               rv = true;
             }
         }
@@ -739,55 +749,27 @@ class PeerCoordinator implements PeerListener
       return null;
     }
 
-    Piece piece = null;
-    List<Piece> requested = new ArrayList(); 
-    int wantedSize = END_GAME_THRESHOLD + 1;
+    // no need to look any further if they have nothing we don't
+    if (storage != null && havePieces.andNot(storage.getBitField()).count() == 0)
+      return null;
+
     synchronized(wantedPieces)
       {
-        if (record)
-            Collections.sort(wantedPieces); // Sort in order of rarest first.
-        Iterator<Piece> it = wantedPieces.iterator();
-        while (piece == null && it.hasNext())
-          {
-            Piece p = it.next();
-            // sorted by priority, so when we hit a disabled piece we are done
-            if (p.isDisabled())
-                break;
-            if (havePieces.get(p.getId()) && !p.isRequested())
-              {
-                // never ever choose one that's in partialPieces, or we
-                // will create a second one and leak
-                boolean hasPartial = false;
-                for (PartialPiece pp : partialPieces) {
-                    if (pp.getPiece() == p.getId()) {
-                        if (_log.shouldLog(Log.INFO))
-                            _log.info("wantPiece() skipping partial for " + peer + ": piece = " + pp);
-                        hasPartial = true;
-                        break;
-                    }
-                }
-                if (!hasPartial)
-                    piece = p;
-              }
-            else if (p.isRequested()) 
-            {
-                requested.add(p);
-            }
-          }
-        if (piece == null)
-            wantedSize = wantedPieces.size();
-        
+        Piece piece = wantedPieces.pick(havePieces);
+
         //Only request a piece we've requested before if there's no other choice.
         if (piece == null) {
             // AND if there are almost no wanted pieces left (real end game).
             // If we do end game all the time, we generate lots of extra traffic
             // when the seeder is super-slow and all the peers are "caught up"
+            int wantedSize = wantedPieces.size();
             if (wantedSize > END_GAME_THRESHOLD) {
                 if (_log.shouldLog(Log.INFO))
-                    _log.info("Nothing to request, " + requested.size() + " being requested and " +
+                    _log.info("Nothing to request, " + wantedPieces.getRequestedCount() + " being requested and " +
                               wantedSize + " still wanted");
                 return null;  // nothing to request and not in end game
             }
+            List<Piece> requested = wantedPieces.getRequested();
             // let's not all get on the same piece
             // Even better would be to sort by number of requests
             if (record)
@@ -813,9 +795,8 @@ class PeerCoordinator implements PeerListener
                 //            + " wanted = " + wantedPieces + " peerHas = " + havePieces);
                 return null; //If we still can't find a piece we want, so be it.
             } else {
-                // Should be a lot smarter here -
-                // share blocks rather than starting from 0 with each peer.
-                // This is where the flaws of the snark data model are really exposed.
+                // getPartialPiece() shares the PartialPiece, so this peer
+                // only asks for the chunks that are still missing.
                 // Could also randomize within the duplicate set rather than strict rarest-first
                 if (_log.shouldLog(Log.INFO))
                     _log.info("parallel request (end game?) for " + peer + ": piece = " + piece);
@@ -825,7 +806,7 @@ class PeerCoordinator implements PeerListener
             if (_log.shouldLog(Log.INFO))
                 _log.info("Now requesting from " + peer + ": piece " + piece + " priority " + piece.getPriority() +
                           " peers " + piece.getPeerCount() + '/' + peers.size());
-            piece.setRequested(peer, true);
+            wantedPieces.setRequested(piece, peer, true);
         }
         return piece;
       } // synch
@@ -846,48 +827,45 @@ class PeerCoordinator implements PeerListener
       }
       List<Piece> toCancel = new ArrayList();
       synchronized(wantedPieces) {
-          // Add incomplete and previously unwanted pieces to the list
-          // Temp to avoid O(n**2)
-          BitField want = new BitField(pri.length);
+          // set the new priorities and remove newly unwanted pieces
           for (Piece p : wantedPieces) {
-              want.set(p.getId());
-          }
-          BitField bitfield = storage.getBitField();
-          for (int i = 0; i < pri.length; i++) {
-              if (pri[i] >= 0 && !bitfield.get(i)) {
-                  if (!want.get(i)) {
-                      Piece piece = new Piece(i);
-                      wantedPieces.add(piece);
-                      wantedBytes += metainfo.getPieceLength(i);
-                      // As connections are already up, new Pieces will
-                      // not have their PeerID list populated, so do that.
-                          for (Peer p : peers) {
-                              PeerState s = p.state;
-                              if (s != null) {
-                                  BitField bf = s.bitfield;
-                                  if (bf != null && bf.get(i))
-                                      piece.addPeer(p);
-                              }
-                          }
-                  }
-              }
-          }
-          // now set the new priorities and remove newly unwanted pieces
-          for (Iterator<Piece> iter = wantedPieces.iterator(); iter.hasNext(); ) {
-               Piece p = iter.next();
                int priority = pri[p.getId()];
                if (priority >= 0) {
-                   p.setPriority(priority);
+                   wantedPieces.setPriority(p, priority);
                } else {
-                   iter.remove();
+                   wantedPieces.remove(p.getId());
                    toCancel.add(p);
                    wantedBytes -= metainfo.getPieceLength(p.getId());
                }
           }
+          // Add incomplete and previously unwanted pieces to the list
+          List<Piece> toAdd = new ArrayList<Piece>();
+          BitField bitfield = storage.getBitField();
+          for (int i = bitfield.nextClearBit(0); i >= 0; i = bitfield.nextClearBit(i + 1)) {
+              if (pri[i] >= 0 && wantedPieces.get(i) == null) {
+                  Piece piece = new Piece(i);
+                  piece.setPriority(pri[i]);
+                  toAdd.add(piece);
+                  wantedBytes += metainfo.getPieceLength(i);
+              }
+          }
+          // they will be in-order unless we shuffle
+          Collections.shuffle(toAdd, _random);
+          for (Piece piece : toAdd) {
+              wantedPieces.add(piece);
+              // As connections are already up, new Pieces will
+              // not have their PeerID list populated, so do that.
+              for (Peer p : peers) {
+                  PeerState s = p.state;
+                  if (s != null) {
+                      BitField bf = s.bitfield;
+                      if (bf != null && bf.get(piece.getId()))
+                          wantedPieces.addPeer(piece, p);
+                  }
+              }
+          }
           if (_log.shouldLog(Log.DEBUG))
               _log.debug("Updated piece priorities, now wanted: " + wantedPieces);
-          // if we added pieces, they will be in-order unless we shuffle
-          Collections.shuffle(wantedPieces, _random);
       }
 
       // cancel outside of wantedPieces lock to avoid deadlocks
@@ -974,11 +952,11 @@ class PeerCoordinator implements PeerListener
         return true;
     }
     int piece = pp.getPiece();
+    boolean bad = false;
     
     synchronized(wantedPieces)
       {
-        Piece p = new Piece(piece);
-        if (!wantedPieces.contains(p))
+        if (wantedPieces.get(piece) == null)
           {
             _log.info("Got unwanted piece " + piece + "/" + metainfo.getPieces() +" from " + peer + " for " + metainfo.getName());
             
@@ -1005,7 +983,12 @@ class PeerCoordinator implements PeerListener
                 // Oops. We didn't actually download this then... :(
                 downloaded -= metainfo.getPieceLength(piece);
                 _log.warn("Got BAD piece " + piece + "/" + metainfo.getPieces() + " from " + peer + " for " + metainfo.getName());
-                return false; // No need to announce BAD piece to peers.
+                // In the end game the others sharing it drop it too, below,
+                // so the whole piece is requested again from scratch.
+                Integer key = Integer.valueOf(piece);
+                if (activePieces.get(key) == pp)
+                    activePieces.remove(key);
+                bad = true;
               }
           }
         catch (IOException ioe)
@@ -1019,10 +1002,23 @@ class PeerCoordinator implements PeerListener
             }
             throw new RuntimeException(msg, ioe);
           }
-        wantedPieces.remove(p);
-        wantedBytes -= metainfo.getPieceLength(p.getId());
+        if (!bad) {
+            wantedPieces.remove(piece);
+            wantedBytes -= metainfo.getPieceLength(piece);
+            activePieces.remove(Integer.valueOf(piece));
+        }
       }
 
+    if (bad) {
+        // PeerState locks, so not with the wantedPieces lock held
+        for (Peer p : peers) {
+            if (p != peer)
+                p.cancel(piece);
+            markUnrequested(p, piece);
+        }
+        return false; // No need to announce BAD piece to peers.
+    }
+
     // just in case
     removePartialPiece(piece);
 
@@ -1052,17 +1048,34 @@ class PeerCoordinator implements PeerListener
         if (!completed())
             snark.storageCompleted(storage);
 
-        synchronized (partialPieces) {
+        synchronized (wantedPieces) {
             for (PartialPiece ppp : partialPieces) {
                 ppp.release();
             }
             partialPieces.clear();
+            wantedPieces.clearPartials();
+            activePieces.clear();
         }
     }
 
     return true;
   }
 
+  /**
+   * Cancels the requests for the chunk to all the other peers
+   * sharing the piece in the end game.
+   */
+  public void gotChunk(Peer peer, int piece, int begin, int length)
+  {
+    for (Peer p : peers) {
+        if (p == peer)
+            continue;
+        PeerState s = p.state;
+        if (s != null)
+            s.cancelChunk(piece, begin, length);
+    }
+  }
+
   /** this does nothing but logging */
   public void gotChoke(Peer peer, boolean choke)
   {
@@ -1120,8 +1133,8 @@ class PeerCoordinator implements PeerListener
   private void removePeerFromPieces(Peer peer) {
       synchronized(wantedPieces) {
           for (Piece piece : wantedPieces) {
-              piece.removePeer(peer);
-              piece.setRequested(peer, false);
+              wantedPieces.removePeer(piece, peer);
+              wantedPieces.setRequested(piece, peer, false);
           }
       } 
   }
@@ -1133,31 +1146,40 @@ class PeerCoordinator implements PeerListener
    *  Storage method is private so we can expand to save multiple partials
    *  if we wish.
    *
+   *  A piece that other peers are still getting is left to them.
+   *
    *  Also mark the piece unrequested if this peer was the only one.
    *
-   *  @param peer partials, must include the zero-offset (empty) ones too
-   *              No dup pieces, piece.setDownloaded() must be set
+   *  @param peer partials, must include the empty ones too
+   *              No dup pieces, we take over the peer's reference to each
    *  @since 0.8.2
    */
-  public void savePartialPieces(Peer peer, List<Request> partials)
+  public void savePartialPieces(Peer peer, List<PartialPiece> partials)
   {
       if (_log.shouldLog(Log.INFO))
           _log.info("Partials received from " + peer + ": " + partials);
       if (halted || completed()) {
-          for (Request req : partials) {
-              PartialPiece pp = req.getPartialPiece();
+          for (PartialPiece pp : partials) {
               pp.release();
           }
           return;
       }
       synchronized(wantedPieces) {
-          for (Request req : partials) {
-              PartialPiece pp = req.getPartialPiece();
-              if (req.off > 0) {
+          for (PartialPiece pp : partials) {
+              if (pp.isShared()) {
+                  // the other peers keep what we got
+                  pp.release();
+                  if (_log.shouldLog(Log.INFO))
+                      _log.info("Leaving shared partial piece to the other peers " + pp);
+              } else if (pp.getDownloaded() > 0) {
+                  Integer key = Integer.valueOf(pp.getPiece());
+                  if (activePieces.get(key) == pp)
+                      activePieces.remove(key);
                   // PartialPiece.equals() only compares piece number, which is what we want
                   int idx = partialPieces.indexOf(pp);
                   if (idx < 0) {
                       partialPieces.add(pp);
+                      wantedPieces.setPartial(pp.getPiece(), true);
                       if (_log.shouldLog(Log.INFO))
                           _log.info("Saving orphaned partial piece (new) " + pp);
                   } else if (idx >= 0 && pp.getDownloaded() > partialPieces.get(idx).getDownloaded()) {
@@ -1176,12 +1198,16 @@ class PeerCoordinator implements PeerListener
                       // sorts by remaining bytes, least first
                       Collections.sort(partialPieces);
                       PartialPiece gone = partialPieces.remove(max);
+                      wantedPieces.setPartial(gone.getPiece(), false);
                       gone.release();
                       if (_log.shouldLog(Log.INFO))
                           _log.info("Discarding orphaned partial piece (list full)" + gone);
                   }
               } else {
                   // drop the empty partial piece
+                  Integer key = Integer.valueOf(pp.getPiece());
+                  if (activePieces.get(key) == pp)
+                      activePieces.remove(key);
                   pp.release();
               }
               // synchs on wantedPieces...
@@ -1212,44 +1238,42 @@ class PeerCoordinator implements PeerListener
               int savedPiece = pp.getPiece();
               if (havePieces.get(savedPiece)) {
                  // this is just a double-check, it should be in there
-                 boolean skipped = false;
-                 for(Piece piece : wantedPieces) {
-                     if (piece.getId() == savedPiece) {
-                         if (peer.isCompleted() && piece.getPeerCount() > 1) {
-                             // Try to preserve rarest-first
-                             // by not requesting a partial piece that non-seeders also have
-                             // from a seeder
-                             boolean nonSeeds = false;
-                             for (Peer pr : peers) {
-                                 PeerState state = pr.state;
-                                 if (state == null) continue;
-                                 BitField bf = state.bitfield;
-                                 if (bf == null) continue;
-                                 if (bf.get(savedPiece) && !pr.isCompleted()) {
-                                     nonSeeds = true;
-                                     break;
-                                 }
-                             }
-                             if (nonSeeds) {
-                                 skipped = true;
-                                 break;
-                             }
+                 Piece piece = wantedPieces.get(savedPiece);
+                 if (piece == null) {
+                     if (_log.shouldLog(Log.WARN))
+                         _log.warn("Partial piece " + pp + " NOT in wantedPieces??");
+                     continue;
+                 }
+                 if (peer.isCompleted() && piece.getPeerCount() > 1) {
+                     // Try to preserve rarest-first
+                     // by not requesting a partial piece that non-seeders also have
+                     // from a seeder
+                     boolean nonSeeds = false;
+                     for (Peer pr : peers) {
+                         PeerState state = pr.state;
+                         if (state == null) continue;
+                         BitField bf = state.bitfield;
+                         if (bf == null) continue;
+                         if (bf.get(savedPiece) && !pr.isCompleted()) {
+                             nonSeeds = true;
+                             break;
                          }
-                         iter.remove();
-                         piece.setRequested(peer, true);
-                         if (_log.shouldLog(Log.INFO)) {
-                             _log.info("Restoring orphaned partial piece " + pp +
-                                       " Partial list size now: " + partialPieces.size());
-                         }
-                         return pp;
-                      }
-                  }
-                  if (_log.shouldLog(Log.WARN)) {
-                      if (skipped)
-                          _log.warn("Partial piece " + pp + " with multiple peers skipped for seeder");
-                      else
-                          _log.warn("Partial piece " + pp + " NOT in wantedPieces??");
-                  }
+                     }
+                     if (nonSeeds) {
+                         if (_log.shouldLog(Log.WARN))
+                             _log.warn("Partial piece " + pp + " with multiple peers skipped for seeder");
+                         continue;
+                     }
+                 }
+                 iter.remove();
+                 wantedPieces.setPartial(savedPiece, false);
+                 wantedPieces.setRequested(piece, peer, true);
+                 activePieces.put(Integer.valueOf(savedPiece), pp);
+                 if (_log.shouldLog(Log.INFO)) {
+                     _log.info("Restoring orphaned partial piece " + pp +
+                               " Partial list size now: " + partialPieces.size());
+                 }
+                 return pp;
               }
           }
           if (_log.shouldLog(Log.WARN) && !partialPieces.isEmpty())
@@ -1259,7 +1283,19 @@ class PeerCoordinator implements PeerListener
       // Temporary? So PeerState never calls wantPiece() directly for now...
       Piece piece = wantPiece(peer, havePieces, true);
       if (piece != null) {
-          return new PartialPiece(piece, metainfo.getPieceLength(piece.getId()), _util.getTempDir());
+          Integer key = Integer.valueOf(piece.getId());
+          synchronized(wantedPieces) {
+              // in the end game, join the peers already getting it
+              PartialPiece pp = activePieces.get(key);
+              if (pp != null && pp.acquire()) {
+                  if (_log.shouldLog(Log.INFO))
+                      _log.info("Sharing partial piece " + pp + " with " + peer);
+                  return pp;
+              }
+              pp = new PartialPiece(piece, metainfo.getPieceLength(piece.getId()), _util.getTempDir());
+              activePieces.put(key, pp);
+              return pp;
+          }
       }
       if (_log.shouldLog(Log.DEBUG))
           _log.debug("We have no partial piece to return");
@@ -1281,16 +1317,12 @@ class PeerCoordinator implements PeerListener
       synchronized(wantedPieces) {
           for (PartialPiece pp : partialPieces) {
               int savedPiece = pp.getPiece();
-              if (havePieces.get(savedPiece)) {
-                 // this is just a double-check, it should be in there
-                 for(Piece piece : wantedPieces) {
-                     if (piece.getId() == savedPiece) {
-                         if (_log.shouldLog(Log.INFO)) {
-                             _log.info("We could restore orphaned partial piece " + pp);
-                         }
-                         return true;
-                      }
+              // this is just a double-check, it should be in there
+              if (havePieces.get(savedPiece) && wantedPieces.get(savedPiece) != null) {
+                  if (_log.shouldLog(Log.INFO)) {
+                      _log.info("We could restore orphaned partial piece " + pp);
                   }
+                  return true;
               }
           }
       }
@@ -1308,6 +1340,7 @@ class PeerCoordinator implements PeerListener
               PartialPiece pp = iter.next();
               if (pp.getPiece() == piece) {
                   iter.remove();
+                  wantedPieces.setPartial(piece, false);
                   pp.release();
                   // there should be only one but keep going to be sure
               }
@@ -1322,12 +1355,9 @@ class PeerCoordinator implements PeerListener
   {
     synchronized(wantedPieces)
       {
-        for (Piece pc : wantedPieces) {
-          if (pc.getId() == piece) {
-            pc.setRequested(peer, false);
-            return;
-          }
-        }
+        Piece pc = wantedPieces.get(piece);
+        if (pc != null)
+            wantedPieces.setRequested(pc, peer, false);
       }
   }
 
@@ -1335,7 +1365,7 @@ class PeerCoordinator implements PeerListener
    *  PeerListener callback
    *  @since 0.8.4
    */
-  public void gotExtension(Peer peer, int id, byte[] bs) {
+  public void gotExtension(Peer peer, int id, byte[] bs, int len) {
       if (_log.shouldLog(Log.DEBUG))
           _log.debug("Got extension message " + id + " from " + peer);
       // basic handling done in PeerState... here we just check if we are done
@@ -103,6 +103,18 @@ interface PeerListener
    */
   boolean gotPiece(Peer peer, PartialPiece piece);
 
+  /**
+   * Called when a chunk of a piece that other peers are also getting
+   * (the end game) has been received, so that their requests for the
+   * same chunk can be cancelled.
+   *
+   * @param peer the Peer that sent the chunk.
+   * @param piece the piece number.
+   * @param begin byte offset into the piece.
+   * @param length length of the chunk.
+   */
+  void gotChunk(Peer peer, int piece, int begin, int length);
+
   /**
    * Called when the peer wants (part of) a piece from us. Only called
    * when the peer is not choked by us (<code>peer.choke(false)</code>
@@ -166,9 +178,11 @@ interface PeerListener
    * downloaded piece that the PeerCoordinator can save
    *
    * @param peer the peer
+   * @param pcs the pieces the peer was holding, the listener takes over
+   *            one reference to each
    * @since 0.8.2
    */
-  void savePartialPieces(Peer peer, List<Request> pcs);
+  void savePartialPieces(Peer peer, List<PartialPiece> pcs);
 
   /**
    * Called when a peer has connected and there may be a partially
@@ -186,10 +200,11 @@ interface PeerListener
    *
    * @param peer the Peer that got the message.
    * @param id the message ID
-   * @param bs the message payload
+   * @param bs the message payload, only valid during the call
+   * @param len the length of the payload in the array
    * @since 0.8.4
    */
-  void gotExtension(Peer peer, int id, byte[] bs);
+  void gotExtension(Peer peer, int id, byte[] bs, int len);
 
   /**
    * Called when a DHT port message is received.
@@ -0,0 +1,99 @@
+package org.klomp.snark;
+
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.ConcurrentHashSet;
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.SimpleTimer;
+
+/**
+ *  A small pool of threads that send the queued messages of every peer,
+ *  instead of a sender thread per peer that mostly sits waiting.
+ *
+ *  A PeerConnectionOut is submitted when a message is queued while it is
+ *  idle, and sends a few messages per run before going to the back of the
+ *  line, so one busy peer doesn't hold up the others.
+ *  Threads exit when there has been nothing to send for a while.
+ *
+ *  A write to a slow peer can block, holding one of the threads, so peers
+ *  whose write has been blocked for longer than WRITE_TIMEOUT are
+ *  disconnected, which frees the thread for everybody else.
+ */
+class PeerSender {
+
+    private static final int MAX_THREADS = 16;
+    private static final long IDLE_TIME = 60*1000;
+    private static final long WRITE_TIMEOUT = 30*1000;
+    private static final long CHECK_INTERVAL = 10*1000;
+    private static final String STAT_THREADS = "snark.sender.threads";
+    private static final String STAT_QUEUED = "snark.sender.queuedPeers";
+
+    private static PeerSender _instance;
+
+    private final I2PAppContext _context;
+    private final ThreadPoolExecutor _executor;
+    /** every started connection, to look for stalled writes */
+    private final Set<PeerConnectionOut> _outs = new ConcurrentHashSet<PeerConnectionOut>();
+    private int _threadCount;
+
+    private PeerSender() {
+        _context = I2PAppContext.getGlobalContext();
+        _executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                                           IDLE_TIME, TimeUnit.MILLISECONDS,
+                                           new LinkedBlockingQueue<Runnable>(),
+                                           new SenderThreadFactory());
+        _executor.allowCoreThreadTimeOut(true);
+        long[] periods = new long[] { 60*1000, 60*60*1000 };
+        _context.statManager().createRequiredRateStat(STAT_THREADS, "Sender threads busy sending to peers", "I2PSnark", periods);
+        _context.statManager().createRequiredRateStat(STAT_QUEUED, "Peers waiting for a sender thread", "I2PSnark", periods);
+        _context.simpleScheduler().addPeriodicEvent(new StallChecker(), CHECK_INTERVAL);
+    }
+
+    public static synchronized PeerSender getInstance() {
+        if (_instance == null)
+            _instance = new PeerSender();
+        return _instance;
+    }
+
+    /**
+     *  Runs the sender for a peer that has something to send.
+     *  The caller makes sure it is not already queued or running.
+     */
+    public void execute(PeerConnectionOut out) {
+        _executor.execute(out);
+        _context.statManager().addRateData(STAT_THREADS, _executor.getActiveCount());
+        _context.statManager().addRateData(STAT_QUEUED, _executor.getQueue().size());
+    }
+
+    /** Watch this connection for stalled writes until remove() */
+    public void add(PeerConnectionOut out) {
+        _outs.add(out);
+    }
+
+    public void remove(PeerConnectionOut out) {
+        _outs.remove(out);
+    }
+
+    private class SenderThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            synchronized (PeerSender.this) {
+                return new I2PAppThread(r, "Snark sender " + (++_threadCount), true);
+            }
+        }
+    }
+
+    private class StallChecker implements SimpleTimer.TimedEvent {
+        public void timeReached() {
+            long cutoff = System.currentTimeMillis() - WRITE_TIMEOUT;
+            for (PeerConnectionOut out : _outs) {
+                if (out.disconnectIfStalled(cutoff))
+                    _outs.remove(out);
+            }
+        }
+    }
+}
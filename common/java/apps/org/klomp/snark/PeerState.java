@@ -59,6 +59,8 @@ class PeerState implements DataLoader
   private final List<Request> outstandingRequests = new ArrayList();
   /** the tail (NOT the head) of the request queue */
   private Request lastRequest = null;
+  /** pieces we hold a reference to, until they are complete or returned */
+  private final Set<PartialPiece> held = new HashSet<PartialPiece>();
 
   // FIXME if piece size < PARTSIZE, pipeline could be bigger
   private final static int MAX_PIPELINE = 5;               // this is for outbound requests
@@ -105,10 +107,8 @@ class PeerState implements DataLoader
     if (choked) {
         out.cancelRequestMessages();
         // old Roberts thrash us here, choke+unchoke right together
-        // The only problem with returning the partials to the coordinator
-        // is that chunks above a missing request are lost.
-        // Future enhancements to PartialPiece could keep track of the holes.
-        List<Request> pcs = returnPartialPieces();
+        // PartialPiece keeps track of the holes, so nothing we got is lost.
+        List<PartialPiece> pcs = returnPartialPieces();
         if (!pcs.isEmpty()) {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug(peer + " got choked, returning partial pieces to the PeerCoordinator: " + pcs);
@@ -155,7 +155,11 @@ class PeerState implements DataLoader
       setInteresting(true);
   }
 
-  void bitfieldMessage(byte[] bitmap)
+  /**
+   *  @param bitmap only valid during the call
+   *  @param len the length of the bitmap in the array
+   */
+  void bitfieldMessage(byte[] bitmap, int len)
   {
     synchronized(this)
       {
@@ -172,10 +176,18 @@ class PeerState implements DataLoader
         // XXX - Check for weird bitfield and disconnect?
         // FIXME will have to regenerate the bitfield after we know exactly
         // how many pieces there are, as we don't know how many spare bits there are.
-        if (metainfo == null)
-            bitfield = new BitField(bitmap, bitmap.length * 8);
-        else
+        if (metainfo == null) {
+            bitfield = new BitField(bitmap, len * 8);
+        } else {
+            // bitmap is a pooled buffer, only the first len bytes are theirs
+            if (len < ((metainfo.getPieces() - 1) / 8) + 1) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Got short bitfield (" + len + " bytes) from " + peer);
+                peer.disconnect();
+                return;
+            }
             bitfield = new BitField(bitmap, metainfo.getPieces());
+        }
       }
     if (metainfo == null)
         return;
@@ -308,12 +320,21 @@ class PeerState implements DataLoader
                   + req.getPiece() + "," + req.off + "," + req.len + ") from "
                   + peer);
 
+    PartialPiece pp = req.getPartialPiece();
+    // In the end game, stop the other peers from sending it too
+    if (pp.isShared())
+      listener.gotChunk(peer, req.getPiece(), req.off, req.len);
+
     // Last chunk needed for this piece?
+    // Only one of the peers sharing it hands it over, along with its reference.
     // FIXME if priority changed to skip, we will think we're done when we aren't
-    if (getFirstOutstandingRequest(req.getPiece()) == -1)
+    if (pp.isComplete() && pp.claimComplete())
       {
+        synchronized(this) {
+            held.remove(pp);
+        }
         // warning - may block here for a while
-        if (listener.gotPiece(peer, req.getPartialPiece()))
+        if (listener.gotPiece(peer, pp))
           {
             if (_log.shouldLog(Log.DEBUG))
               _log.debug("Got " + req.getPiece() + ": " + peer);
@@ -322,6 +343,8 @@ class PeerState implements DataLoader
           {
             if (_log.shouldLog(Log.WARN))
               _log.warn("Got BAD " + req.getPiece() + " from " + peer);
+            // the coordinator has made everybody else drop it too
+            cancelPiece(req.getPiece());
           }
       }
 
@@ -420,45 +443,19 @@ class PeerState implements DataLoader
 
   }
 
-  /**
-   *  @return lowest offset of any request for the piece
-   *  @since 0.8.2
-   */
-  synchronized private Request getLowestOutstandingRequest(int piece) {
-      Request rv = null;
-      int lowest = Integer.MAX_VALUE;
-      for (Request r :  outstandingRequests) {
-          if (r.getPiece() == piece && r.off < lowest) {
-              lowest = r.off;
-              rv = r;
-          }
-      }
-      if (pendingRequest != null &&
-          pendingRequest.getPiece() == piece && pendingRequest.off < lowest)
-          rv = pendingRequest;
-
-      if (_log.shouldLog(Log.DEBUG))
-          _log.debug(peer + " lowest for " + piece + " is " + rv + " out of " + pendingRequest + " and " + outstandingRequests);
-      return rv;
-  }
-
   /**
    *  Get partial pieces, give them back to PeerCoordinator.
    *  Clears the request queue.
-   *  @return List of PartialPieces, even those with an offset == 0, or empty list
+   *  @return List of PartialPieces, even those with nothing downloaded, or empty list
    *  @since 0.8.2
    */
-  synchronized List<Request> returnPartialPieces()
+  synchronized List<PartialPiece> returnPartialPieces()
   {
-      Set<Integer> pcs = getRequestedPieces();
-      List<Request> rv = new ArrayList(pcs.size());
-      for (Integer p : pcs) {
-          Request req = getLowestOutstandingRequest(p.intValue());
-          if (req != null) {
-              req.getPartialPiece().setDownloaded(req.off);
-              rv.add(req);
-          }
+      for (Request req : outstandingRequests) {
+          req.getPartialPiece().unrequest(req.off);
       }
+      List<PartialPiece> rv = new ArrayList<PartialPiece>(held);
+      held.clear();
       outstandingRequests.clear();
       pendingRequest = null;
       lastRequest = null;
@@ -472,9 +469,9 @@ class PeerState implements DataLoader
       Set<Integer> rv = new HashSet(outstandingRequests.size() + 1);
       for (Request req : outstandingRequests) {
           rv.add(Integer.valueOf(req.getPiece()));
+      }
       if (pendingRequest != null)
           rv.add(Integer.valueOf(pendingRequest.getPiece()));
-      }
       return rv;
   }
 
@@ -487,7 +484,11 @@ class PeerState implements DataLoader
   }
 
   /** @since 0.8.2 */
-  void extensionMessage(int id, byte[] bs)
+  /**
+   *  @param bs only valid during the call
+   *  @param len the length of the payload in the array
+   */
+  void extensionMessage(int id, byte[] bs, int len)
   {
       if (metainfo != null && metainfo.isPrivate() &&
           (id == ExtensionHandler.ID_METADATA || id == ExtensionHandler.ID_PEX)) {
@@ -496,10 +497,10 @@ class PeerState implements DataLoader
               _log.warn("Private torrent, ignoring ext msg " + id);
           return;
       }
-      ExtensionHandler.handleMessage(peer, listener, id, bs);
+      ExtensionHandler.handleMessage(peer, listener, id, bs, len);
       // Peer coord will get metadata from MagnetState,
       // verify, and then call gotMetaInfo()
-      listener.gotExtension(peer, id, bs);
+      listener.gotExtension(peer, id, bs, len);
   }
 
   /**
@@ -536,11 +537,11 @@ class PeerState implements DataLoader
       listener.gotPort(peer, port, port + 1);
   }
 
-  void unknownMessage(int type, byte[] bs)
+  void unknownMessage(int type, int len)
   {
     if (_log.shouldLog(Log.WARN))
       _log.warn("Warning: Ignoring unknown message type: " + type
-                  + " length: " + bs.length);
+                  + " length: " + len);
   }
 
   /**
@@ -591,7 +592,37 @@ class PeerState implements DataLoader
                 // Send cancel even when we are choked to make sure that it is
                 // really never ever send.
                 out.sendCancel(req);
-                req.getPartialPiece().release();
+                req.getPartialPiece().unrequest(req.off);
+              }
+          }
+
+        for (Iterator<PartialPiece> iter = held.iterator(); iter.hasNext(); ) {
+            PartialPiece pp = iter.next();
+            if (pp.getPiece() == piece) {
+                iter.remove();
+                pp.release();
+            }
+        }
+  }
+
+  /**
+   * Another peer sent us this chunk of a piece we share with it in the
+   * end game, tell the other side we don't need it any more.
+   * Keeps the piece, and the requests for the rest of it.
+   */
+  synchronized void cancelChunk(int piece, int begin, int length) {
+        Iterator<Request> it = outstandingRequests.iterator();
+        while (it.hasNext())
+          {
+            Request req = it.next();
+            if (req.getPiece() == piece && req.off == begin && req.len == length)
+              {
+                it.remove();
+                out.sendCancel(req);
+                req.getPartialPiece().unrequest(req.off);
+                if (_log.shouldLog(Log.DEBUG))
+                  _log.debug("Cancelled " + req + " to " + peer + ", another peer sent it");
+                break;
               }
           }
   }
@@ -686,23 +717,14 @@ class PeerState implements DataLoader
           more_pieces = requestNextPiece();
         } else if (more_pieces) // We want something
           {
-            int pieceLength;
-            boolean isLastChunk;
-            pieceLength = metainfo.getPieceLength(lastRequest.getPiece());
-            isLastChunk = lastRequest.off + lastRequest.len == pieceLength;
-
-            // Last part of a piece?
-            if (isLastChunk)
+            // The next chunk of the piece that nobody has sent yet,
+            // or none if we have asked for the last part of it.
+            PartialPiece nextPiece = lastRequest.getPartialPiece();
+            Request req = nextPiece.getRequest(lastRequest.off + lastRequest.len);
+            if (req == null)
               more_pieces = requestNextPiece();
             else
               {
-                    PartialPiece nextPiece = lastRequest.getPartialPiece();
-                    int nextBegin = lastRequest.off + PARTSIZE;
-                    int maxLength = pieceLength - nextBegin;
-                    int nextLength = maxLength > PARTSIZE ? PARTSIZE
-                                                          : maxLength;
-                    Request req
-                      = new Request(nextPiece,nextBegin, nextLength);
                     outstandingRequests.add(req);
                     if (!choked)
                       out.sendRequest(req);
@@ -734,8 +756,12 @@ class PeerState implements DataLoader
         PartialPiece pp = listener.getPartialPiece(peer, bitfield);
         if (pp != null) {
             // Double-check that r not already in outstandingRequests
-            if (!getRequestedPieces().contains(Integer.valueOf(pp.getPiece()))) {
-                Request r = pp.getRequest();
+            Request r = null;
+            if (!getRequestedPieces().contains(Integer.valueOf(pp.getPiece())) &&
+                !held.contains(pp))
+                r = pp.getRequest(0);
+            if (r != null) {
+                held.add(pp);
                 outstandingRequests.add(r);
                 if (!choked)
                   out.sendRequest(r);
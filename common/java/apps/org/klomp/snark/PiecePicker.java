@@ -0,0 +1,252 @@
+package org.klomp.snark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The wanted pieces of a torrent, indexed for choosing what to request next.
+ *
+ * Pieces are kept in tiers by priority, and within a tier in buckets by
+ * how many peers have them, so the rarest piece of the highest priority
+ * that a peer has is found by walking the buckets in order, instead of
+ * sorting every wanted piece for each request. Pieces that are being
+ * requested or have a saved partial piece are tracked in bitsets.
+ *
+ * This class is used solely by PeerCoordinator.
+ * Caller must synchronize on this for all methods.
+ */
+class PiecePicker implements Iterable<Piece> {
+
+    /** by id, null if not wanted */
+    private Piece[] pieces;
+    /** priority, highest first, to buckets indexed by peer count */
+    private final SortedMap<Integer, List<Set<Piece>>> tiers;
+    private final BitSet requested;
+    private final BitSet partial;
+    private int size;
+
+    public PiecePicker() {
+        this.pieces = new Piece[0];
+        this.tiers = new TreeMap<Integer, List<Set<Piece>>>(Collections.reverseOrder());
+        this.requested = new BitSet();
+        this.partial = new BitSet();
+    }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    /** @return the wanted piece, or null if it isn't wanted */
+    public Piece get(int id) {
+        return id >= 0 && id < pieces.length ? pieces[id] : null;
+    }
+
+    /**
+     * Pieces added in a row with the same priority and peer count
+     * are picked in the order they were added.
+     */
+    public void add(Piece piece) {
+        int id = piece.getId();
+        if (id >= pieces.length)
+            pieces = Arrays.copyOf(pieces, Math.max(id + 1, pieces.length * 2));
+        if (pieces[id] != null)
+            remove(id);
+        pieces[id] = piece;
+        size++;
+        addToBucket(piece);
+        requested.set(id, piece.isRequested());
+    }
+
+    /** @return the piece that was removed, or null if it wasn't wanted */
+    public Piece remove(int id) {
+        Piece piece = get(id);
+        if (piece == null)
+            return null;
+        removeFromBucket(piece, piece.getPriority(), piece.getPeerCount());
+        pieces[id] = null;
+        size--;
+        requested.clear(id);
+        return piece;
+    }
+
+    /**
+     * Removes all wanted pieces. Partial pieces are tracked separately
+     * and are not cleared.
+     */
+    public void clear() {
+        Arrays.fill(pieces, null);
+        tiers.clear();
+        requested.clear();
+        size = 0;
+    }
+
+    /**
+     * Clears all knowledge of peers and requests from every piece.
+     */
+    public void clearPeers() {
+        tiers.clear();
+        requested.clear();
+        for (Piece piece : this) {
+            piece.clear();
+            addToBucket(piece);
+        }
+    }
+
+    /** @return true if the peer wasn't already counted for this piece */
+    public boolean addPeer(Piece piece, Peer peer) {
+        int count = piece.getPeerCount();
+        if (!piece.addPeer(peer))
+            return false;
+        removeFromBucket(piece, piece.getPriority(), count);
+        addToBucket(piece);
+        return true;
+    }
+
+    /** @return true if removed */
+    public boolean removePeer(Piece piece, Peer peer) {
+        int count = piece.getPeerCount();
+        if (!piece.removePeer(peer))
+            return false;
+        removeFromBucket(piece, piece.getPriority(), count);
+        addToBucket(piece);
+        return true;
+    }
+
+    public void setPriority(Piece piece, int priority) {
+        if (piece.getPriority() == priority)
+            return;
+        removeFromBucket(piece, piece.getPriority(), piece.getPeerCount());
+        piece.setPriority(priority);
+        addToBucket(piece);
+    }
+
+    public void setRequested(Piece piece, Peer peer, boolean isRequested) {
+        piece.setRequested(peer, isRequested);
+        if (pieces.length > piece.getId() && pieces[piece.getId()] == piece)
+            requested.set(piece.getId(), piece.isRequested());
+    }
+
+    /** @return how many wanted pieces are being requested */
+    public int getRequestedCount() {
+        return requested.cardinality();
+    }
+
+    /** @return the wanted pieces that are being requested, in order */
+    public List<Piece> getRequested() {
+        List<Piece> rv = new ArrayList<Piece>(requested.cardinality());
+        for (int i = requested.nextSetBit(0); i >= 0; i = requested.nextSetBit(i + 1))
+            rv.add(pieces[i]);
+        return rv;
+    }
+
+    /** Track whether the coordinator has a saved partial piece for this piece */
+    public void setPartial(int id, boolean isPartial) {
+        partial.set(id, isPartial);
+    }
+
+    public void clearPartials() {
+        partial.clear();
+    }
+
+    /**
+     * The rarest piece of the highest priority that the peer has, that
+     * isn't being requested and doesn't have a saved partial piece.
+     *
+     * @return null if none
+     */
+    public Piece pick(BitField havePieces) {
+        for (Map.Entry<Integer, List<Set<Piece>>> e : tiers.entrySet()) {
+            // highest first, so when we hit a disabled tier we are done
+            if (e.getKey().intValue() < 0)
+                break;
+            List<Set<Piece>> buckets = e.getValue();
+            for (int i = 1; i < buckets.size(); i++) {
+                Piece piece = pick(buckets.get(i), havePieces);
+                if (piece != null)
+                    return piece;
+            }
+            // nobody should have these, but the counts are only as good as the haves we got
+            if (!buckets.isEmpty()) {
+                Piece piece = pick(buckets.get(0), havePieces);
+                if (piece != null)
+                    return piece;
+            }
+        }
+        return null;
+    }
+
+    private Piece pick(Set<Piece> bucket, BitField havePieces) {
+        for (Piece piece : bucket) {
+            int id = piece.getId();
+            // never ever choose one that has a partial piece, or we
+            // will create a second one and leak
+            if (havePieces.get(id) && !requested.get(id) && !partial.get(id))
+                return piece;
+        }
+        return null;
+    }
+
+    private void addToBucket(Piece piece) {
+        Integer priority = Integer.valueOf(piece.getPriority());
+        List<Set<Piece>> buckets = tiers.get(priority);
+        if (buckets == null) {
+            buckets = new ArrayList<Set<Piece>>();
+            tiers.put(priority, buckets);
+        }
+        int count = piece.getPeerCount();
+        while (buckets.size() <= count)
+            buckets.add(new LinkedHashSet<Piece>());
+        buckets.get(count).add(piece);
+    }
+
+    private void removeFromBucket(Piece piece, int priority, int count) {
+        List<Set<Piece>> buckets = tiers.get(Integer.valueOf(priority));
+        if (buckets != null && count < buckets.size())
+            buckets.get(count).remove(piece);
+    }
+
+    /** In id order. Pieces may be removed while iterating, but not with remove(). */
+    public Iterator<Piece> iterator() {
+        return new Iterator<Piece>() {
+            private int next;
+
+            public boolean hasNext() {
+                // pieces may have been removed since the last call
+                while (next < pieces.length && pieces[next] == null)
+                    next++;
+                return next < pieces.length;
+            }
+
+            public Piece next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return pieces[next++];
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("[");
+        for (Piece piece : this) {
+            if (buf.length() > 1)
+                buf.append(", ");
+            buf.append(piece.getId());
+        }
+        return buf.append(']').toString();
+    }
+}
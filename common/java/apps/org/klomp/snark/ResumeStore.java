@@ -0,0 +1,180 @@
+package org.klomp.snark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Base32;
+import net.i2p.util.FileUtil;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFile;
+
+/**
+ *  Fast-resume records, one small file per infohash, so that a restart
+ *  doesn't have to hash every piece of every torrent again.
+ *
+ *  Each record holds the time it was saved, the bitfield, and the length
+ *  and last-modified time of every file in the torrent. Storage.check()
+ *  then only rehashes the pieces of files that changed since.
+ *
+ *  Format: version (int), saved time (long), piece count (int),
+ *  complete (boolean), bitfield bytes unless complete,
+ *  file count (int), then a length (long) and mtime (long) per file.
+ */
+public class ResumeStore {
+
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".resume";
+
+    private final File _dir;
+    private final Log _log;
+
+    /**
+     *  @param dir created if it doesn't exist
+     */
+    public ResumeStore(File dir) {
+        _dir = dir;
+        _log = I2PAppContext.getGlobalContext().logManager().getLog(ResumeStore.class);
+        if (!_dir.exists())
+            _dir.mkdirs();
+    }
+
+    /**
+     *  A record as read from disk, already checked against the metainfo.
+     */
+    public static class Record {
+        public final long savedTime;
+        public final BitField bitfield;
+        public final long[] fileTimes;
+
+        private Record(long savedTime, BitField bitfield, long[] fileTimes) {
+            this.savedTime = savedTime;
+            this.bitfield = bitfield;
+            this.fileTimes = fileTimes;
+        }
+    }
+
+    private File getFile(byte[] infohash) {
+        return new File(_dir, Base32.encode(infohash) + SUFFIX);
+    }
+
+    /**
+     *  Saves the current state of a checked storage.
+     *  Does nothing if the storage hasn't been checked yet.
+     *  Waits for queued piece writes, so the record never claims
+     *  a piece that isn't on disk.
+     */
+    public void save(Storage storage) {
+        MetaInfo meta = storage.getMetaInfo();
+        BitField bitfield = storage.getBitField();
+        if (meta == null || bitfield == null)
+            return;
+        bitfield = new BitField(bitfield);
+        try {
+            storage.flush();
+        } catch (IOException ioe) {
+            return;
+        }
+        long[] fileTimes = storage.getFileTimes();
+        if (fileTimes == null)
+            return;
+        long[] lengths = getLengths(meta);
+        File file = getFile(meta.getInfoHash());
+        File tmp = new SecureFile(_dir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(bitfield.size());
+            boolean complete = bitfield.complete();
+            out.writeBoolean(complete);
+            if (!complete)
+                out.write(bitfield.getFieldBytes());
+            out.writeInt(fileTimes.length);
+            for (int i = 0; i < fileTimes.length; i++) {
+                out.writeLong(lengths[i]);
+                out.writeLong(fileTimes[i]);
+            }
+            out.close();
+            out = null;
+            if (!FileUtil.rename(tmp, file))
+                _log.error("Failed to save resume data to " + file);
+        } catch (IOException ioe) {
+            _log.error("Failed to save resume data to " + file, ioe);
+            tmp.delete();
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  @return the saved record, or null if there is none or it doesn't
+     *          match the metainfo
+     */
+    public Record load(MetaInfo meta) {
+        File file = getFile(meta.getInfoHash());
+        if (!file.exists())
+            return null;
+        long[] lengths = getLengths(meta);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION)
+                return null;
+            long savedTime = in.readLong();
+            int pieces = in.readInt();
+            if (pieces != meta.getPieces())
+                return null;
+            BitField bitfield;
+            if (in.readBoolean()) {
+                bitfield = new BitField(pieces);
+                bitfield.setAll();
+            } else {
+                byte[] bytes = new byte[((pieces - 1) / 8) + 1];
+                in.readFully(bytes);
+                bitfield = new BitField(bytes, pieces);
+            }
+            int count = in.readInt();
+            if (count != lengths.length)
+                return null;
+            long[] fileTimes = new long[count];
+            for (int i = 0; i < count; i++) {
+                if (in.readLong() != lengths[i])
+                    return null;
+                fileTimes[i] = in.readLong();
+            }
+            return new Record(savedTime, bitfield, fileTimes);
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Bad resume data in " + file, ioe);
+            return null;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Deletes the record for a torrent that is being removed.
+     */
+    public void remove(byte[] infohash) {
+        getFile(infohash).delete();
+    }
+
+    private static long[] getLengths(MetaInfo meta) {
+        List<Long> ls = meta.getLengths();
+        if (ls == null)
+            return new long[] { meta.getTotalLength() };
+        long[] rv = new long[ls.size()];
+        for (int i = 0; i < rv.length; i++)
+            rv[i] = ls.get(i).longValue();
+        return rv;
+    }
+}
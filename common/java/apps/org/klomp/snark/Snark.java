@@ -400,7 +400,8 @@ public class Snark
             if (completeListener != null) {
                 storage.check(rootDataDir,
                               completeListener.getSavedTorrentTime(this),
-                              completeListener.getSavedTorrentBitField(this));
+                              completeListener.getSavedTorrentBitField(this),
+                              completeListener.getSavedFileTimes(this));
             } else {
                 storage.check(rootDataDir);
             }
@@ -68,6 +68,8 @@ public class SnarkManager implements CompleteListener {
     private volatile boolean _running;
     private volatile boolean _stopping;
     private final Map<String, Tracker> _trackerMap;
+    /** bitfields and priorities, kept out of the config file */
+    private final TorrentStatusStore _statusStore;
     private UpdateManager _umgr;
     private UpdateHandler _uhandler;
     
@@ -85,6 +87,7 @@ public class SnarkManager implements CompleteListener {
     public static final String PROP_META_MAGNET_PREFIX = "i2psnark.magnet.";
 
     private static final String CONFIG_FILE_SUFFIX = ".config";
+    private static final String STATUS_FILE_SUFFIX = ".status.blockfile";
     public static final String PROP_FILES_PUBLIC = "i2psnark.filesPublic";
     public static final String PROP_AUTO_START = "i2snark.autoStart";   // oops
     public static final String DEFAULT_AUTO_START = "false";
@@ -159,6 +162,10 @@ public class SnarkManager implements CompleteListener {
         _configFile = new File(cfile);
         if (!_configFile.isAbsolute())
             _configFile = new File(_context.getConfigDir(), cfile);
+        File sfile = new File(ctxName + STATUS_FILE_SUFFIX);
+        if (!sfile.isAbsolute())
+            sfile = new File(_context.getConfigDir(), sfile.getPath());
+        _statusStore = new TorrentStatusStore(_context, sfile);
         _trackerMap = new ConcurrentHashMap(4);
         loadConfig(null);
     }
@@ -217,6 +224,7 @@ public class SnarkManager implements CompleteListener {
         _monitor.interrupt();
         _connectionAcceptor.halt();
         stopAllTorrents(true);
+        _statusStore.close();
     }
     
     /** @since 0.9.1 */
@@ -326,6 +334,7 @@ public class SnarkManager implements CompleteListener {
             if (cfg.exists()) {
                 try {
                     DataHelper.loadProps(_config, cfg);
+                    migrateTorrentStatus();
                 } catch (IOException ioe) {
                    _log.error("Error loading I2PSnark config '" + filename + "'", ioe);
                 }
@@ -804,6 +813,24 @@ public class SnarkManager implements CompleteListener {
         return rv;
     }
 
+    /**
+     *  Moves any torrent status left in an old config file to the status store.
+     */
+    private void migrateTorrentStatus() {
+        boolean moved = false;
+        for (Object o : new ArrayList<Object>(_config.keySet())) {
+            String k = (String) o;
+            if (k.startsWith(PROP_META_PREFIX) &&
+                (k.endsWith(PROP_META_BITFIELD_SUFFIX) || k.endsWith(PROP_META_PRIORITY_SUFFIX))) {
+                _statusStore.put(k, _config.getProperty(k));
+                _config.remove(k);
+                moved = true;
+            }
+        }
+        if (moved)
+            saveConfig();
+    }
+
     public void saveConfig() {
         try {
             synchronized (_configFile) {
@@ -1214,14 +1241,14 @@ public class SnarkManager implements CompleteListener {
     }
 
     /**
-     * Get the timestamp for a torrent from the config file.
+     * Get the timestamp for a torrent from the status store.
      * A Snark.CompleteListener method.
      */
     public long getSavedTorrentTime(Snark snark) {
         byte[] ih = snark.getInfoHash();
         String infohash = Base64.encode(ih);
         infohash = infohash.replace('=', '$');
-        String time = _config.getProperty(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX);
+        String time = _statusStore.get(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX);
         if (time == null)
             return 0;
         int comma = time.indexOf(',');
@@ -1233,7 +1260,7 @@ public class SnarkManager implements CompleteListener {
     }
     
     /**
-     * Get the saved bitfield for a torrent from the config file.
+     * Get the saved bitfield for a torrent from the status store.
      * Convert "." to a full bitfield.
      * A Snark.CompleteListener method.
      */
@@ -1244,7 +1271,7 @@ public class SnarkManager implements CompleteListener {
         byte[] ih = snark.getInfoHash();
         String infohash = Base64.encode(ih);
         infohash = infohash.replace('=', '$');
-        String bf = _config.getProperty(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX);
+        String bf = _statusStore.get(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX);
         if (bf == null)
             return null;
         int comma = bf.indexOf(',');
@@ -1254,8 +1281,7 @@ public class SnarkManager implements CompleteListener {
         int len = metainfo.getPieces();
         if (bf.equals(".")) {
             BitField bitfield = new BitField(len);
-            for (int i = 0; i < len; i++)
-                 bitfield.set(i);
+            bitfield.setAll();
             return bitfield;
         }
         byte[] bitfield = Base64.decode(bf);
@@ -1267,7 +1293,16 @@ public class SnarkManager implements CompleteListener {
     }
     
     /**
-     * Get the saved priorities for a torrent from the config file.
+     * The status store doesn't keep per-file times, so changed files are
+     * found by comparing them to the saved torrent time instead.
+     * A Snark.CompleteListener method.
+     */
+    public long[] getSavedFileTimes(Snark snark) {
+        return null;
+    }
+    
+    /**
+     * Get the saved priorities for a torrent from the status store.
      * @since 0.8.1
      */
     public void loadSavedFilePriorities(Snark snark) {
@@ -1280,7 +1315,7 @@ public class SnarkManager implements CompleteListener {
         byte[] ih = snark.getInfoHash();
         String infohash = Base64.encode(ih);
         infohash = infohash.replace('=', '$');
-        String pri = _config.getProperty(PROP_META_PREFIX + infohash + PROP_META_PRIORITY_SUFFIX);
+        String pri = _statusStore.get(PROP_META_PREFIX + infohash + PROP_META_PRIORITY_SUFFIX);
         if (pri == null)
             return;
         int filecount = metainfo.getFiles().size();
@@ -1297,13 +1332,14 @@ public class SnarkManager implements CompleteListener {
     }
     
     /**
-     * Save the completion status of a torrent and the current time in the config file
+     * Save the completion status of a torrent and the current time in the status store
      * in the form "i2psnark.zmeta.$base64infohash=$time,$base64bitfield".
-     * The config file property key is appended with the Base64 of the infohash,
+     * The key is appended with the Base64 of the infohash,
      * with the '=' changed to '$' since a key can't contain '='.
      * The time is a standard long converted to string.
      * The status is either a bitfield converted to Base64 or "." for a completed
-     * torrent to save space in the config file and in memory.
+     * torrent to save space in the store and in memory.
+     * The store coalesces updates and writes them out a few seconds later.
      *
      * @param bitfield non-null
      * @param priorities may be null
@@ -1320,7 +1356,7 @@ public class SnarkManager implements CompleteListener {
           byte[] bf = bitfield.getFieldBytes();
           bfs = Base64.encode(bf);
         }
-        _config.setProperty(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX, now + "," + bfs);
+        _statusStore.put(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX, now + "," + bfs);
 
         // now the file priorities
         String prop = PROP_META_PREFIX + infohash + PROP_META_PRIORITY_SUFFIX;
@@ -1341,30 +1377,26 @@ public class SnarkManager implements CompleteListener {
                     if (i != priorities.length - 1)
                         buf.append(',');
                 }
-                _config.setProperty(prop, buf.toString());
+                _statusStore.put(prop, buf.toString());
             } else {
-                _config.remove(prop);
+                _statusStore.remove(prop);
             }
         } else {
-            _config.remove(prop);
+            _statusStore.remove(prop);
         }
 
         // TODO save closest DHT nodes too
-
-        saveConfig();
     }
     
     /**
-     * Remove the status of a torrent from the config file.
-     * This may help the config file from growing too big.
+     * Remove the status of a torrent from the status store.
      */
     public void removeTorrentStatus(MetaInfo metainfo) {
         byte[] ih = metainfo.getInfoHash();
         String infohash = Base64.encode(ih);
         infohash = infohash.replace('=', '$');
-        _config.remove(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX);
-        _config.remove(PROP_META_PREFIX + infohash + PROP_META_PRIORITY_SUFFIX);
-        saveConfig();
+        _statusStore.remove(PROP_META_PREFIX + infohash + PROP_META_BITFIELD_SUFFIX);
+        _statusStore.remove(PROP_META_PREFIX + infohash + PROP_META_PRIORITY_SUFFIX);
     }
     
     /**
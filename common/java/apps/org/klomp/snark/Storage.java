@@ -24,11 +24,16 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -67,7 +72,7 @@ public class Storage
 
   private /* FIXME final FIXME */ BitField bitfield; // BitField to represent the pieces
   private int needed; // Number of pieces needed
-  private boolean _probablyComplete;  // use this to decide whether to open files RO
+  private volatile boolean _probablyComplete;  // use this to decide whether to open files RO
 
   private final int piece_size;
   private final int pieces;
@@ -75,6 +80,16 @@ public class Storage
   private boolean changed;
   private volatile boolean _isChecking;
   private final AtomicInteger _allocateCount = new AtomicInteger();
+  /** write-behind for verified pieces, created on the first putPiece() */
+  private StorageWriter _writer;
+  /** (file << 32 | region) to read-only mappings of complete files, least recently used first */
+  private final Map<Long, MappedByteBuffer> _mapped = new LinkedHashMap<Long, MappedByteBuffer>(MAX_MAPPED_REGIONS, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+          return size() > MAX_MAPPED_REGIONS;
+      }
+  };
+  private long _mapTime;  // when was a mapping last used
 
   /** The default piece size. */
   private static final int DEFAULT_PIECE_SIZE = 256*1024;
@@ -83,11 +98,21 @@ public class Storage
   /** The maximum number of pieces in a torrent. */
   public static final int MAX_PIECES = 10*1024;
   public static final long MAX_TOTAL_SIZE = MAX_PIECE_SIZE * (long) MAX_PIECES;
+  /**
+   *  Every piece is verified as it arrives, so the full recheck at completion is optional.
+   *  Only safe to leave off because PartialPiece.read() keeps a single copy of each chunk,
+   *  so the hash of a piece is always the hash of what gets written.
+   */
+  public static final String PROP_RECHECK_ON_COMPLETE = "i2psnark.recheckOnComplete";
 
   private static final Map<String, String> _filterNameCache = new ConcurrentHashMap();
 
   private static final boolean _isWindows = SystemVersion.isWindows();
 
+  /** complete files are served from mappings of this size, so seeding doesn't need a read per request */
+  private static final int MAP_REGION_SIZE = 4*1024*1024;
+  private static final int MAX_MAPPED_REGIONS = 8;
+
   private static final int BUFSIZE = PeerState.PARTSIZE;
   private static final ByteCache _cache = ByteCache.getInstance(16, BUFSIZE);
 
@@ -494,6 +519,19 @@ public class Storage
 
   /** use a saved bitfield and timestamp from a config file */
   public void check(String rootDir, long savedTime, BitField savedBitField) throws IOException
+  {
+    check(rootDir, savedTime, savedBitField, null);
+  }
+
+  /**
+   * Use a saved bitfield along with the last modified time of each file
+   * when it was saved. Only the pieces of files whose time or length
+   * changed since are rehashed.
+   *
+   * @param savedFileTimes may be null to compare every file to savedTime instead
+   */
+  public void check(String rootDir, long savedTime, BitField savedBitField,
+                    long[] savedFileTimes) throws IOException
   {
     File base;
     boolean areFilesPublic = _util.getFilesPublic();
@@ -502,6 +540,7 @@ public class Storage
     else
         base = new SecureFile(rootDir, filterName(metainfo.getName()));
     boolean useSavedBitField = savedTime > 0 && savedBitField != null;
+    boolean[] changedFiles = null;
 
     List<List<String>> files = metainfo.getFiles();
     if (files == null)
@@ -528,6 +567,7 @@ public class Storage
                 useSavedBitField = false;
         }
         names[0] = base.getName();
+        changedFiles = new boolean[1];
       }
     else
       {
@@ -547,6 +587,7 @@ public class Storage
         RAFtime = new long[size];
         RAFfile = new File[size];
         isSparse = new boolean[size];
+        changedFiles = new boolean[size];
         for (int i = 0; i < size; i++)
           {
             List<String> path = files.get(i);
@@ -588,12 +629,34 @@ public class Storage
           throw new IOException("File lengths do not add up "
                                 + total + " != " + metalength);
       }
+    // With per-file times, work out exactly which files changed
+    BitField knownPieces = null;
+    if (savedBitField != null && savedFileTimes != null &&
+        savedFileTimes.length == RAFfile.length) {
+      boolean anyChanged = false;
+      for (int i = 0; i < RAFfile.length; i++) {
+        long lm = RAFfile[i].lastModified();
+        changedFiles[i] = lm <= 0 || lm != savedFileTimes[i] ||
+                          RAFfile[i].length() != lengths[i];
+        anyChanged |= changedFiles[i];
+      }
+      useSavedBitField = !anyChanged;
+      if (anyChanged)
+        knownPieces = getUnchangedPieces(changedFiles);
+    }
+
     if (useSavedBitField) {
       bitfield = savedBitField;
       needed = metainfo.getPieces() - bitfield.count();
       _probablyComplete = complete();
       if (_log.shouldLog(Log.INFO))
           _log.info("Found saved state and files unchanged, skipping check");
+    } else if (knownPieces != null) {
+      if (_log.shouldLog(Log.INFO))
+          _log.info("Found saved state, rechecking " +
+                    (pieces - knownPieces.count()) + " pieces of changed files");
+      changed = true;
+      checkCreateFiles(false, knownPieces, savedBitField);
     } else {
       // the following sets the needed variable
       changed = true;
@@ -611,6 +674,40 @@ public class Storage
     }
   }
 
+  /**
+   * The pieces that lie entirely within files that didn't change.
+   */
+  private BitField getUnchangedPieces(boolean[] changedFiles)
+  {
+    BitField changedPieces = new BitField(pieces);
+    long start = 0;
+    for (int i = 0; i < lengths.length; i++) {
+      long end = start + lengths[i];
+      if (changedFiles[i] && end > start)
+        changedPieces.set((int) (start / piece_size), (int) ((end - 1) / piece_size) + 1);
+      start = end;
+    }
+    BitField unchanged = new BitField(pieces);
+    unchanged.setAll();
+    return unchanged.andNot(changedPieces);
+  }
+
+  /**
+   * The last modified time of each file, for saving resume data.
+   *
+   * @return null if the storage hasn't been checked yet
+   */
+  public long[] getFileTimes()
+  {
+    File[] files = RAFfile;
+    if (files == null)
+      return null;
+    long[] rv = new long[files.length];
+    for (int i = 0; i < files.length; i++)
+      rv[i] = files[i].lastModified();
+    return rv;
+  }
+
   /**
    * Doesn't really reopen the file descriptors for a restart.
    * Just does an existence check but no length check or data reverification
@@ -750,17 +847,27 @@ public class Storage
    *        the check fails.
    */
   private void checkCreateFiles(boolean recheck) throws IOException {
+      checkCreateFiles(recheck, null, null);
+  }
+
+  /**
+   * @param knownPieces pieces whose state can be taken from savedBitField
+   *        without hashing them, or null to hash every piece
+   */
+  private void checkCreateFiles(boolean recheck, BitField knownPieces,
+                                BitField savedBitField) throws IOException {
       synchronized(this) {
           _isChecking = true;
           try {
-              locked_checkCreateFiles(recheck);
+              locked_checkCreateFiles(recheck, knownPieces, savedBitField);
           } finally {
               _isChecking = false;
           }
       }
   }
 
-  private void locked_checkCreateFiles(boolean recheck) throws IOException
+  private void locked_checkCreateFiles(boolean recheck, BitField knownPieces,
+                                       BitField savedBitField) throws IOException
   {
     // Whether we are resuming or not,
     // if any of the files already exists we assume we are resuming.
@@ -824,8 +931,15 @@ public class Storage
         long pieceEnd = 0;
         for (int i = 0; i < pieces; i++)
           {
-            int length = getUncheckedPiece(i, piece);
-            boolean correctHash = metainfo.checkPiece(i, piece, 0, length);
+            int length;
+            boolean correctHash;
+            if (knownPieces != null && knownPieces.get(i)) {
+              length = metainfo.getPieceLength(i);
+              correctHash = savedBitField.get(i);
+            } else {
+              length = getUncheckedPiece(i, piece);
+              correctHash = metainfo.checkPiece(i, piece, 0, length);
+            }
             // close as we go so we don't run out of file descriptors
             pieceEnd += length;
             while (fileEnd <= pieceEnd) {
@@ -944,6 +1058,11 @@ public class Storage
    */
   public void close() throws IOException
   {
+    try {
+        flush();
+    } catch (IOException ioe) {
+        _log.error("Error writing pieces for " + metainfo.getName(), ioe);
+    }
     if (rafs == null) return;
     for (int i = 0; i < rafs.length; i++)
       {
@@ -959,6 +1078,9 @@ public class Storage
             // gobble gobble
         }
       }
+    synchronized(_mapped) {
+      _mapped.clear();
+    }
     changed = false;
   }
 
@@ -986,30 +1108,52 @@ public class Storage
       return null;
     }
     bs = rv.getData();
-    getUncheckedPiece(piece, bs, off, len);
+    StorageWriter writer = getWriter(false);
+    if (writer == null || !writer.read(piece, off, bs, len))
+        getUncheckedPiece(piece, bs, off, len);
     return rv;
   }
 
+  /**
+   *  Blocks until all pieces passed to putPiece() are on disk.
+   *
+   *  @throws IOException if one of the writes failed
+   */
+  public void flush() throws IOException {
+    StorageWriter writer = getWriter(false);
+    if (writer != null)
+        writer.flush();
+  }
+
+  private synchronized StorageWriter getWriter(boolean create) {
+    if (_writer == null && create)
+        _writer = new StorageWriter(this, _util.getContext(), metainfo.getName());
+    return _writer;
+  }
+
   /**
    * Put the piece in the Storage if it is correct.
-   * Warning - takes a LONG time if complete as it does the recheck here.
-   * TODO thread the recheck?
+   * The piece is written by the StorageWriter, and is released once it
+   * is on disk; until then getPiece() serves it from memory.
+   * Warning - takes a LONG time if complete and i2psnark.recheckOnComplete
+   * is set, as it does the recheck here.
    *
    * @return true if the piece was correct (sha metainfo hash
    * matches), otherwise false.
-   * @exception IOException when some storage related error occurs.
+   * @exception IOException when some storage related error occurs,
+   *            including a failed write of an earlier piece.
    */
   public boolean putPiece(PartialPiece pp) throws IOException
   {
       int piece = pp.getPiece();
+      boolean queued = false;
       try {
           synchronized(bitfield) {
               if (bitfield.get(piece))
                   return true; // No need to store twice.
           }
 
-          // TODO alternative - check hash on the fly as we write to the file,
-          // to save another I/O pass
+          // the hash was computed as the chunks arrived, if they were in order
           boolean correctHash = metainfo.checkPiece(pp);
           if (!correctHash) {
               if (listener != null)
@@ -1017,6 +1161,73 @@ public class Storage
               return false;
           }
 
+          getWriter(true).queue(pp);
+          queued = true;
+      } finally {
+          if (!queued)
+              pp.release();
+      }
+
+    changed = true;
+
+    // do this after queueing, so getPiece() finds it in the writer until it is on disk.
+    // if the write fails, writeFailed() clears it again.
+    boolean complete = false;
+    synchronized(bitfield)
+      {
+        if (!bitfield.get(piece))
+          {
+            bitfield.set(piece);
+            needed--;
+            complete = needed == 0;
+          }
+      }
+    // tell listener after counts are updated
+    if (listener != null)
+        listener.storageChecked(this, piece, true);
+
+    // everything must be on disk before the files are reopened readonly or rechecked
+    if (complete)
+        flush();
+
+    if (complete && !_util.getContext().getBooleanProperty(PROP_RECHECK_ON_COMPLETE)) {
+      _probablyComplete = true;
+      if (listener != null) {
+        listener.storageAllChecked(this);
+        listener.storageCompleted(this);
+      }
+    } else if (complete) {
+      // do we also need to close all of the files and reopen
+      // them readonly?
+
+      // Do a complete check to be sure.
+      // Temporarily resets the 'needed' variable and 'bitfield', then call
+      // checkCreateFiles() which will set 'needed' and 'bitfield'
+      // and also call listener.storageCompleted() if the double-check
+      // was successful.
+      checkCreateFiles(true);
+      if (needed > 0) {
+        if (listener != null)
+            listener.setWantedPieces(this);
+        if (_log.shouldLog(Log.WARN))
+            _log.warn("WARNING: Not really done, missing " + needed
+                    + " pieces");
+      }
+    }
+
+    return true;
+ }
+
+  /**
+   *  Called by the StorageWriter to write a batch of verified pieces, in
+   *  piece order so that adjacent pieces are one sequential run.
+   *  Every file written to is synced once at the end.
+   */
+  void writePieces(Collection<PartialPiece> pps) throws IOException
+  {
+      boolean[] touched = new boolean[rafs.length];
+      for (PartialPiece pp : pps) {
+          int piece = pp.getPiece();
           // Early typecast, avoid possibly overflowing a temp integer
           long start = (long) piece * (long) piece_size;
           int i = 0;
@@ -1050,6 +1261,7 @@ public class Storage
                   //rafs[i].write(bs, off + written, len);
                   pp.write(rafs[i], off + written, len);
               }
+              touched[i] = true;
               written += len;
               if (need - len > 0) {
                   i++;
@@ -1057,49 +1269,38 @@ public class Storage
                   start = 0;
               }
           }
-      } finally {
-          pp.release();
       }
-
-    changed = true;
-
-    // do this after the write, so we know it succeeded, and we don't set the
-    // needed count to zero, which would cause checkRAF() to open the file readonly.
-    boolean complete = false;
-    synchronized(bitfield)
-      {
-        if (!bitfield.get(piece))
-          {
-            bitfield.set(piece);
-            needed--;
-            complete = needed == 0;
+      for (int i = 0; i < touched.length; i++) {
+          if (!touched[i])
+              continue;
+          synchronized(RAFlock[i]) {
+              if (rafs[i] != null)
+                  rafs[i].getFD().sync();
           }
       }
-    // tell listener after counts are updated
-    if (listener != null)
-        listener.storageChecked(this, piece, true);
-
-    if (complete) {
-      // do we also need to close all of the files and reopen
-      // them readonly?
+  }
 
-      // Do a complete check to be sure.
-      // Temporarily resets the 'needed' variable and 'bitfield', then call
-      // checkCreateFiles() which will set 'needed' and 'bitfield'
-      // and also call listener.storageCompleted() if the double-check
-      // was successful.
-      checkCreateFiles(true);
-      if (needed > 0) {
-        if (listener != null)
-            listener.setWantedPieces(this);
-        if (_log.shouldLog(Log.WARN))
-            _log.warn("WARNING: Not really done, missing " + needed
-                    + " pieces");
-      }
+  /**
+   *  Called by the StorageWriter when pieces could not be written.
+   *  They are no longer ours, so they will be downloaded again
+   *  if the torrent is restarted.
+   */
+  void writeFailed(Collection<Integer> failed, IOException ioe)
+  {
+    synchronized(bitfield) {
+        for (Integer piece : failed) {
+            if (bitfield.get(piece.intValue())) {
+                bitfield.clear(piece.intValue());
+                needed++;
+            }
+        }
     }
-
-    return true;
- }
+    _probablyComplete = false;
+    String msg = "Error writing " + failed.size() + " pieces to " + metainfo.getName() + ": " + ioe;
+    _log.error(msg, ioe);
+    if (listener != null)
+        listener.addMessage(msg);
+  }
 
   /**
    *  This is a dup of MetaInfo.getPieceLength() but we need it
@@ -1143,11 +1344,14 @@ public class Storage
       {
         int need = length - read;
         int len = (start + need < raflen) ? need : (int)(raflen - start);
-        synchronized(RAFlock[i])
+        if (!readMapped(i, start, bs, read, len))
           {
-            checkRAF(i);
-            rafs[i].seek(start);
-            rafs[i].readFully(bs, read, len);
+            synchronized(RAFlock[i])
+              {
+                checkRAF(i);
+                rafs[i].seek(start);
+                rafs[i].readFully(bs, read, len);
+              }
           }
         read += len;
         if (need - len > 0)
@@ -1162,11 +1366,107 @@ public class Storage
   }
 
   /**
-   * Close unused RAFs - call periodically
+   *  Copies from a mapping of a complete file, so there is no seek and read
+   *  under the RAF lock, and no RAF to keep open, for each request.
+   *
+   *  @return false if the storage isn't complete or the file can't be mapped,
+   *          so the caller should read it
+   */
+  private boolean readMapped(int i, long start, byte[] bs, int off, int len)
+  {
+    if (!_probablyComplete)
+      return false;
+    try {
+      while (len > 0) {
+        long region = start / MAP_REGION_SIZE;
+        ByteBuffer buf = getMapped(i, region);
+        if (buf == null)
+          return false;
+        int pos = (int) (start - (region * MAP_REGION_SIZE));
+        int n = Math.min(len, buf.limit() - pos);
+        // the file may have been rewritten since it was mapped, and reading
+        // a mapping past the end of the file crashes instead of throwing
+        if (RAFfile[i].length() < start + n) {
+          dropMapped(i);
+          return false;
+        }
+        // a duplicate, so concurrent readers don't share a position
+        buf = buf.duplicate();
+        buf.position(pos);
+        buf.get(bs, off, n);
+        start += n;
+        off += n;
+        len -= n;
+      }
+      return true;
+    } catch (IOException ioe) {
+      if (_log.shouldLog(Log.WARN))
+        _log.warn("Error mapping " + RAFfile[i], ioe);
+      return false;
+    } catch (InternalError ie) {
+      // truncated between the length check and the copy, where the VM
+      // turns the fault into an error instead of crashing
+      if (_log.shouldLog(Log.WARN))
+        _log.warn("Error reading mapped " + RAFfile[i], ie);
+      dropMapped(i);
+      return false;
+    }
+  }
+
+  /**
+   *  Forget the mappings of a file that changed underneath them.
+   */
+  private void dropMapped(int i)
+  {
+    synchronized(_mapped) {
+      for (Iterator<Long> iter = _mapped.keySet().iterator(); iter.hasNext(); ) {
+        if ((iter.next().longValue() >>> 32) == i)
+          iter.remove();
+      }
+    }
+  }
+
+  /**
+   *  @return null if the file is shorter than it should be
+   */
+  private MappedByteBuffer getMapped(int i, long region) throws IOException
+  {
+    Long key = Long.valueOf(((long) i << 32) | region);
+    synchronized(_mapped) {
+      _mapTime = System.currentTimeMillis();
+      MappedByteBuffer rv = _mapped.get(key);
+      if (rv != null)
+        return rv;
+    }
+    long pos = region * MAP_REGION_SIZE;
+    long size = Math.min(MAP_REGION_SIZE, lengths[i] - pos);
+    // reading a mapping past the end of the file would crash, not throw
+    if (RAFfile[i].length() < pos + size)
+      return null;
+    MappedByteBuffer rv;
+    // the mapping stays valid after the file is closed
+    RandomAccessFile raf = new RandomAccessFile(RAFfile[i], "r");
+    try {
+      rv = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, pos, size);
+    } finally {
+      raf.close();
+    }
+    synchronized(_mapped) {
+      _mapped.put(key, rv);
+    }
+    return rv;
+  }
+
+  /**
+   * Close unused RAFs and drop unused mappings - call periodically
    */
   private static final long RAFCloseDelay = 4*60*1000;
   public void cleanRAFs() {
     long cutoff = System.currentTimeMillis() - RAFCloseDelay;
+    synchronized(_mapped) {
+      if (_mapTime < cutoff)
+        _mapped.clear();
+    }
     for (int i = 0; i < RAFlock.length; i++) {
       synchronized(RAFlock[i]) {
         if (RAFtime[i] > 0 && RAFtime[i] < cutoff) {
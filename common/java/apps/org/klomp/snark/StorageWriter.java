@@ -0,0 +1,233 @@
+package org.klomp.snark;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.Log;
+
+/**
+ *  Write-behind queue for one Storage, so that a peer's reader thread
+ *  hands off a verified piece and goes back to reading instead of
+ *  waiting on the disk.
+ *
+ *  Pieces are written on a small pool of threads shared by every Storage.
+ *  A writer is scheduled LINGER ms after a piece is queued while it is
+ *  idle, so pieces that arrive one at a time are gathered into a batch,
+ *  and it runs until its queue is empty. Each batch is written in piece
+ *  order, so adjacent pieces go out as one sequential run, and every file
+ *  the batch touched is synced once at the end.
+ *
+ *  Queued pieces count against MAX_QUEUED_BYTES, and queue() blocks
+ *  while the queue is full.
+ */
+class StorageWriter implements Runnable {
+
+    private static final long MAX_QUEUED_BYTES = 8*1024*1024;
+    private static final int MAX_THREADS = 2;
+    private static final long LINGER = 1000;
+    private static final long IDLE_TIME = 60*1000;
+    private static final String STAT_QUEUED = "snark.storage.queuedBytes";
+    private static final String STAT_WRITE_TIME = "snark.storage.writeTime";
+
+    private final Storage _storage;
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final String _name;
+    /** piece number to piece, waiting for the next batch */
+    private SortedMap<Integer, PartialPiece> _pending;
+    /** the batch being written, still readable until it is done */
+    private SortedMap<Integer, PartialPiece> _writing;
+    private long _queuedBytes;
+    private boolean _running;
+    private IOException _error;
+
+    private static ScheduledThreadPoolExecutor _executor;
+    private static int _threadCount;
+
+    public StorageWriter(Storage storage, I2PAppContext ctx, String name) {
+        _storage = storage;
+        _context = ctx;
+        _log = ctx.logManager().getLog(StorageWriter.class);
+        _name = name;
+        _pending = new TreeMap<Integer, PartialPiece>();
+        long[] periods = new long[] { 60*1000, 60*60*1000 };
+        ctx.statManager().createRequiredRateStat(STAT_QUEUED, "Bytes waiting to be written to disk", "I2PSnark", periods);
+        ctx.statManager().createRequiredRateStat(STAT_WRITE_TIME, "How long it takes to write and sync a batch of pieces", "I2PSnark", periods);
+    }
+
+    /**
+     *  Takes ownership of the piece and releases it once it is written.
+     *  Blocks while the queue is full.
+     *
+     *  @throws IOException if an earlier write failed
+     */
+    public synchronized void queue(PartialPiece pp) throws IOException {
+        checkError();
+        try {
+            while (_queuedBytes > 0 && _queuedBytes + pp.getLength() > MAX_QUEUED_BYTES) {
+                wait();
+                checkError();
+            }
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted waiting to queue piece " + pp.getPiece());
+        }
+        PartialPiece old = _pending.put(Integer.valueOf(pp.getPiece()), pp);
+        if (old != null) {
+            _queuedBytes -= old.getLength();
+            old.release();
+        }
+        _queuedBytes += pp.getLength();
+        _context.statManager().addRateData(STAT_QUEUED, _queuedBytes);
+        if (!_running) {
+            _running = true;
+            getExecutor().schedule(this, LINGER, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (_executor == null) {
+            _executor = new ScheduledThreadPoolExecutor(MAX_THREADS, new WriterThreadFactory());
+            _executor.setKeepAliveTime(IDLE_TIME, TimeUnit.MILLISECONDS);
+            _executor.allowCoreThreadTimeOut(true);
+        }
+        return _executor;
+    }
+
+    /**
+     *  Copies part of a piece that hasn't made it to disk yet.
+     *
+     *  @return false if the piece isn't queued, so the caller should read it from disk
+     */
+    public boolean read(int piece, int off, byte[] bs, int len) {
+        Integer key = Integer.valueOf(piece);
+        PartialPiece pp;
+        synchronized (this) {
+            pp = _pending.get(key);
+            if (pp == null && _writing != null)
+                pp = _writing.get(key);
+        }
+        if (pp == null)
+            return false;
+        try {
+            pp.write(new DataOutputStream(new ArrayOutput(bs)), off, len);
+            return true;
+        } catch (IOException ioe) {
+            // released after being written while we were reading it, so it's on disk now
+            return false;
+        }
+    }
+
+    /**
+     *  Blocks until everything queued so far is on disk.
+     *
+     *  @throws IOException if a write failed
+     */
+    public synchronized void flush() throws IOException {
+        try {
+            while (_running)
+                wait();
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted waiting for writes to " + _name);
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        if (_error != null)
+            throw _error;
+    }
+
+    public void run() {
+        while (true) {
+            SortedMap<Integer, PartialPiece> batch;
+            SortedMap<Integer, PartialPiece> dropped = null;
+            synchronized (this) {
+                if (_error != null && !_pending.isEmpty()) {
+                    dropped = _pending;
+                    _pending = new TreeMap<Integer, PartialPiece>();
+                    _queuedBytes = 0;
+                }
+                if (_pending.isEmpty() || _error != null) {
+                    _running = false;
+                    notifyAll();
+                    batch = null;
+                } else {
+                    batch = _pending;
+                    _writing = batch;
+                    _pending = new TreeMap<Integer, PartialPiece>();
+                }
+            }
+            if (batch == null) {
+                if (dropped != null) {
+                    // queued after the failed batch, never written
+                    _storage.writeFailed(dropped.keySet(), _error);
+                    for (PartialPiece pp : dropped.values())
+                        pp.release();
+                }
+                return;
+            }
+            long start = _context.clock().now();
+            long bytes = 0;
+            for (PartialPiece pp : batch.values())
+                bytes += pp.getLength();
+            try {
+                _storage.writePieces(batch.values());
+                long time = _context.clock().now() - start;
+                _context.statManager().addRateData(STAT_WRITE_TIME, time);
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Wrote " + batch.size() + " pieces (" + bytes + " bytes) to " + _name + " in " + time + "ms");
+            } catch (IOException ioe) {
+                synchronized (this) {
+                    _error = ioe;
+                }
+                _storage.writeFailed(batch.keySet(), ioe);
+            } finally {
+                synchronized (this) {
+                    _writing = null;
+                    _queuedBytes -= bytes;
+                    notifyAll();
+                }
+                for (PartialPiece pp : batch.values())
+                    pp.release();
+            }
+        }
+    }
+
+    private static class WriterThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            synchronized (StorageWriter.class) {
+                return new I2PAppThread(r, "Snark writer " + (++_threadCount), true);
+            }
+        }
+    }
+
+    /** Fills an array from the start */
+    private static class ArrayOutput extends OutputStream {
+        private final byte[] _data;
+        private int _off;
+
+        public ArrayOutput(byte[] data) {
+            _data = data;
+        }
+
+        @Override
+        public void write(int b) {
+            _data[_off++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, _data, _off, len);
+            _off += len;
+        }
+    }
+}
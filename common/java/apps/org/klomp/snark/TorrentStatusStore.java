@@ -0,0 +1,180 @@
+package org.klomp.snark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+import net.i2p.util.SimpleTimer;
+
+import net.metanotion.io.RAIFile;
+import net.metanotion.io.Serializer;
+import net.metanotion.io.block.BlockFile;
+import net.metanotion.io.data.UTF8StringBytes;
+import net.metanotion.util.skiplist.SkipList;
+
+/**
+ *  Per-torrent status (bitfields and file priorities) kept in a BlockFile
+ *  skiplist, so that saving one torrent's status only touches the pages
+ *  holding that key instead of rewriting the whole config file.
+ *
+ *  Updates are held in memory and written out together at most once
+ *  every FLUSH_DELAY, so a burst of updates to the same torrent
+ *  costs a single write.
+ */
+public class TorrentStatusStore {
+
+    private static final String STATUS_SKIPLIST = "status";
+    private static final long FLUSH_DELAY = 10*1000;
+    private static final Serializer _stringSerializer = new UTF8StringBytes();
+
+    private final I2PAppContext _context;
+    private final Log _log;
+    /** key to new value, or to null if removed, since the last flush */
+    private final Map<String, String> _pending;
+    private RAIFile _raf;
+    private BlockFile _bf;
+    private SkipList _status;
+    private boolean _flushScheduled;
+    private boolean _isClosed;
+
+    /**
+     *  If the file can't be opened or created, the status is only kept
+     *  in memory.
+     */
+    public TorrentStatusStore(I2PAppContext ctx, File file) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(TorrentStatusStore.class);
+        _pending = new HashMap<String, String>();
+        try {
+            open(file);
+        } catch (IOException ioe) {
+            close(false);
+            File corrupt = new File(file.getPath() + ".corrupt");
+            _log.error("Corrupt or unreadable status database " + file +
+                       ", moving to " + corrupt + " and creating a new one", ioe);
+            file.renameTo(corrupt);
+            try {
+                open(file);
+            } catch (IOException ioe2) {
+                close(false);
+                _log.error("Failed to create status database " + file +
+                           ", status will not be saved", ioe2);
+            }
+        }
+        _context.addShutdownTask(new Shutdown());
+    }
+
+    private void open(File file) throws IOException {
+        boolean exists = file.exists();
+        // closing a BlockFile does not close the underlying file,
+        // so we must create and retain a RAF so we may close it later
+        _raf = new RAIFile(file, true, true);
+        if (!exists)
+            SecureFileOutputStream.setPerms(file);
+        _bf = new BlockFile(_raf, !exists);
+        _status = exists ? _bf.getIndex(STATUS_SKIPLIST, _stringSerializer, _stringSerializer) : null;
+        if (_status == null)
+            _status = _bf.makeIndex(STATUS_SKIPLIST, _stringSerializer, _stringSerializer);
+        _isClosed = false;
+    }
+
+    /**
+     *  @return the value, or null if there is none
+     */
+    public synchronized String get(String key) {
+        if (_pending.containsKey(key))
+            return _pending.get(key);
+        if (_status == null)
+            return null;
+        try {
+            return (String) _status.get(key);
+        } catch (RuntimeException re) {
+            _log.error("Error reading status for " + key, re);
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, String value) {
+        _pending.put(key, value);
+        scheduleFlush();
+    }
+
+    public synchronized void remove(String key) {
+        _pending.put(key, null);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!_flushScheduled && _status != null && !_isClosed) {
+            _flushScheduled = true;
+            _context.simpleScheduler().addEvent(new Flusher(), FLUSH_DELAY);
+        }
+    }
+
+    /**
+     *  Writes out all pending updates now.
+     */
+    public synchronized void flush() {
+        _flushScheduled = false;
+        if (_status == null || _pending.isEmpty())
+            return;
+        try {
+            for (Map.Entry<String, String> e : _pending.entrySet()) {
+                if (e.getValue() != null)
+                    _status.put(e.getKey(), e.getValue());
+                else
+                    _status.remove(e.getKey());
+            }
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Flushed " + _pending.size() + " status updates");
+            _pending.clear();
+        } catch (RuntimeException re) {
+            _log.error("Error saving torrent status", re);
+        }
+    }
+
+    /**
+     *  Flushes and closes the database. Later updates are kept in memory only.
+     */
+    public synchronized void close() {
+        flush();
+        close(true);
+    }
+
+    private void close(boolean log) {
+        _isClosed = true;
+        try {
+            if (_bf != null)
+                _bf.close();
+        } catch (IOException ioe) {
+            if (log && _log.shouldLog(Log.WARN))
+                _log.warn("Error closing", ioe);
+        } catch (RuntimeException re) {
+            if (log && _log.shouldLog(Log.WARN))
+                _log.warn("Error closing", re);
+        }
+        try {
+            if (_raf != null)
+                _raf.close();
+        } catch (IOException ioe) {}
+        _bf = null;
+        _raf = null;
+        _status = null;
+    }
+
+    private class Flusher implements SimpleTimer.TimedEvent {
+        public void timeReached() {
+            flush();
+        }
+    }
+
+    private class Shutdown implements Runnable {
+        public void run() {
+            close();
+        }
+    }
+}
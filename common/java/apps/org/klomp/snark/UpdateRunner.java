@@ -289,6 +289,10 @@ class UpdateRunner implements UpdateTask, CompleteListener {
         return _smgr.getSavedTorrentBitField(snark);
     }
 
+    public long[] getSavedFileTimes(Snark snark) {
+        return _smgr.getSavedFileTimes(snark);
+    }
+
     //////// end CompleteListener methods
 
     private void updateStatus(String s) {
@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -16,7 +17,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -125,6 +125,13 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
     private final AtomicLong _rxBytes = new AtomicLong();
     private final AtomicLong _txBytes = new AtomicLong();
     private long _started;
+    /** how many queries a lookup keeps outstanding, Kademlia's alpha */
+    private final int _alpha;
+    /** not a node, just the round trip times of every reply */
+    private final NID _netRTT = new NID();
+    /** recent lookup times, for the percentiles */
+    private final long[] _lookupTimes = new long[100];
+    private int _lookupCount;
 
     /** all-zero NID used for pings */
     public static final NID FAKE_NID = new NID(new byte[NID.HASH_LENGTH]);
@@ -151,6 +158,15 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
     private static final long MAX_MSGID_AGE = 2*60*1000;
     /** how long since sent do we wait for a reply */
     private static final long DEFAULT_QUERY_TIMEOUT = 75*1000;
+    /** how many queries a lookup keeps outstanding */
+    public static final String PROP_ALPHA = "i2psnark.dht.alpha";
+    private static final int DEFAULT_ALPHA = 3;
+    /** bounds on how long a lookup waits for one node before trying the next */
+    private static final long MIN_LOOKUP_TIMEOUT = 5*1000;
+    private static final long MAX_LOOKUP_TIMEOUT = 40*1000;
+    /** until we have some round trip times */
+    private static final long DEFAULT_LOOKUP_TIMEOUT = 20*1000;
+    private static final String STAT_LOOKUP_TIME = "dht.lookupTime";
     /** stagger with other cleaners */
     private static final long CLEAN_TIME = 63*1000;
     private static final long EXPLORE_TIME = 877*1000;
@@ -203,6 +219,9 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         _dhtFile = new File(ctx.getConfigDir(), baseName + DHT_FILE_SUFFIX);
         _backupDhtFile = baseName.equals("i2psnark") ? null : new File(ctx.getConfigDir(), "i2psnark" + DHT_FILE_SUFFIX);
         _knownNodes = new DHTNodes(ctx, _myNID);
+        _alpha = Math.max(1, ctx.getProperty(PROP_ALPHA, DEFAULT_ALPHA));
+        ctx.statManager().createRequiredRateStat(STAT_LOOKUP_TIME, "How long a DHT lookup takes", "I2PSnark",
+                                                 new long[] { 60*60*1000, 24*60*60*1000 });
 
         start();
     }
@@ -265,65 +284,19 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
      *
      *  @param target the key we are searching for
      *  @param maxNodes how many to contact
-     *  @param maxWait how long to wait for each to reply (not total) must be > 0
-     *  @param parallel how many outstanding at once (unimplemented, always 1)
+     *  @param maxWait how long to wait in total, must be > 0
      */
-    private void explore(NID target, int maxNodes, long maxWait, int parallel) {
-        List<NodeInfo> nodes = _knownNodes.findClosest(target, maxNodes);
-        if (nodes.isEmpty()) {
+    private void explore(NID target, int maxNodes, long maxWait) {
+        if (_knownNodes.size() <= 0) {
             if (_log.shouldLog(Log.WARN))
                 _log.info("DHT is empty, cannot explore");
             return;
         }
-        SortedSet<NodeInfo> toTry = new TreeSet(new NodeInfoComparator(target));
-        toTry.addAll(nodes);
-        Set<NodeInfo> tried = new HashSet();
-
         if (_log.shouldLog(Log.INFO))
             _log.info("Starting explore of " + target);
-        for (int i = 0; i < maxNodes; i++) {
-            if (!_isRunning)
-                break;
-            NodeInfo nInfo;
-            try {
-                nInfo = toTry.first();
-            } catch (NoSuchElementException nsee) {
-                break;
-            }
-            toTry.remove(nInfo);
-            tried.add(nInfo);
-
-            ReplyWaiter waiter = sendFindNode(nInfo, target);
-            if (waiter == null)
-                continue;
-            synchronized(waiter) {
-                try {
-                    waiter.wait(maxWait);
-                } catch (InterruptedException ie) {}
-            }
-
-            int replyType = waiter.getReplyCode();
-            if (replyType == REPLY_NONE) {
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got no reply");
-            } else if (replyType == REPLY_NODES) {
-                 List<NodeInfo> reply = (List<NodeInfo>) waiter.getReplyObject();
-                 // It seems like we are just going to get back ourselves all the time
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got " + reply.size() + " nodes");
-                 for (NodeInfo ni : reply) {
-                     if (! (ni.equals(_myNodeInfo) || (toTry.contains(ni) && tried.contains(ni))))
-                         toTry.add(ni);
-                 }
-            } else if (replyType == REPLY_NETWORK_FAIL) {
-                 break;
-            } else {
-                 if (_log.shouldLog(Log.INFO))
-                     _log.info("Got unexpected reply " + replyType + ": " + waiter.getReplyObject());
-            }
-        }
+        List<NodeInfo> replied = lookup(target, null, maxNodes, _context.clock().now() + maxWait, null, 0);
         if (_log.shouldLog(Log.INFO))
-            _log.info("Finished explore of " + target);
+            _log.info("Finished explore of " + target + ", " + replied.size() + " replied");
     }
 
     /**
@@ -356,77 +329,122 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         if (rv.size() >= max)
             return rv;
         rv = new HashSet(rv);
+        int local = rv.size();
         long endTime = _context.clock().now() + maxWait;
 
-        // Initial set to try, will get added to as we go
+        // how many nodes to ask at most
         int maxNodes = 12;
-        List<NodeInfo> nodes = _knownNodes.findClosest(iHash, maxNodes);
-        SortedSet<NodeInfo> toTry = new TreeSet(new NodeInfoComparator(iHash));
-        toTry.addAll(nodes);
-        Set<NodeInfo> tried = new HashSet();
-
         if (_log.shouldLog(Log.INFO))
-            _log.info("Starting getPeers for " + iHash + " with " + nodes.size() + " to try");
-        for (int i = 0; i < maxNodes; i++) {
-            if (!_isRunning)
-                break;
-            NodeInfo nInfo;
-            try {
-                nInfo = toTry.first();
-            } catch (NoSuchElementException nsee) {
-                break;
-            }
-            toTry.remove(nInfo);
-            tried.add(nInfo);
+            _log.info("Starting getPeers for " + iHash);
+        lookup(null, iHash, maxNodes, endTime, rv, max);
+        rv.remove(_myNodeInfo.getHash());
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Finished get Peers, " + local + " from local and " + (rv.size() - local) + " from DHT");
+        return rv;
+    }
 
-            ReplyWaiter waiter = sendGetPeers(nInfo, iHash);
-            if (waiter == null)
-                continue;
-            synchronized(waiter) {
-                try {
-                    waiter.wait(Math.max(20*1000, (Math.min(40*1000, endTime - _context.clock().now()))));
-                } catch (InterruptedException ie) {}
+    /**
+     *  Iterative lookup of the nodes closest to a key, for getPeers() and explore().
+     *  Blocking!
+     *
+     *  Keeps up to alpha queries outstanding to the closest nodes not yet tried.
+     *  Each node gets a timeout from its round trip times, after which we
+     *  go on to the next one, although a late reply is still used.
+     *  Stops when the K closest nodes we have heard of have replied,
+     *  or for get_peers, when we have some peers and the queries in flight are done.
+     *
+     *  @param nid the key for find_node, or null
+     *  @param ih the key for get_peers, or null
+     *  @param maxQueries how many nodes to query at most
+     *  @param endTime when to give up
+     *  @param peers for get_peers, add the peers here, or null
+     *  @param maxPeers stop when peers holds this many
+     *  @return the nodes that replied, closest first
+     */
+    private List<NodeInfo> lookup(NID nid, InfoHash ih, int maxQueries, long endTime,
+                                  Collection<Hash> peers, int maxPeers) {
+        SHA1Hash target = ih != null ? ih : nid;
+        NodeInfoComparator comp = new NodeInfoComparator(target);
+        SortedSet<NodeInfo> toTry = new TreeSet<NodeInfo>(comp);
+        toTry.addAll(_knownNodes.findClosest(target, maxQueries));
+        Set<NodeInfo> tried = new HashSet<NodeInfo>();
+        SortedSet<NodeInfo> replied = new TreeSet<NodeInfo>(comp);
+        QuerySet queries = new QuerySet();
+        long start = _context.clock().now();
+        int sent = 0;
+        boolean gotPeers = false;
+
+        while (_isRunning) {
+            while (!gotPeers && sent < maxQueries && queries.inFlight() < _alpha &&
+                   !toTry.isEmpty() && !isClosest(replied, toTry.first(), comp)) {
+                NodeInfo nInfo = toTry.first();
+                toTry.remove(nInfo);
+                tried.add(nInfo);
+                sent++;
+                ReplyWaiter waiter = ih != null ? sendGetPeers(nInfo, ih) : sendFindNode(nInfo, nid);
+                if (waiter != null)
+                    queries.add(waiter);
             }
+            // nothing more to send and nobody left worth waiting for
+            if ((queries.inFlight() <= 0 && !queries.hasDone()) || _context.clock().now() >= endTime)
+                break;
 
-            int replyType = waiter.getReplyCode();
-            if (replyType == REPLY_NONE) {
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got no reply");
-            } else if (replyType == REPLY_PONG) {
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got pong");
-            } else if (replyType == REPLY_PEERS) {
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got peers");
-                 List<Hash> reply = (List<Hash>) waiter.getReplyObject();
-                 if (!reply.isEmpty()) {
-                     for (int j = 0; j < reply.size() && rv.size() < max; j++) {
-                          rv.add(reply.get(j));
+            boolean failed = false;
+            for (ReplyWaiter waiter : queries.waitForReplies(endTime)) {
+                int replyType = waiter.getReplyCode();
+                NodeInfo from = waiter.getSentTo();
+                if (replyType == REPLY_NONE) {
+                     if (_log.shouldLog(Log.DEBUG))
+                         _log.debug("Got no reply from " + from);
+                } else if (replyType == REPLY_PONG) {
+                     if (_log.shouldLog(Log.DEBUG))
+                         _log.debug("Got pong from " + from);
+                } else if (replyType == REPLY_PEERS) {
+                     replied.add(from);
+                     List<Hash> reply = (List<Hash>) waiter.getReplyObject();
+                     if (_log.shouldLog(Log.DEBUG))
+                         _log.debug("Got " + reply.size() + " peers from " + from);
+                     if (peers != null && !reply.isEmpty()) {
+                         for (int j = 0; j < reply.size() && peers.size() < maxPeers; j++) {
+                              peers.add(reply.get(j));
+                         }
+                         gotPeers = true;
                      }
+                } else if (replyType == REPLY_NODES) {
+                     replied.add(from);
+                     List<NodeInfo> reply = (List<NodeInfo>) waiter.getReplyObject();
+                     if (_log.shouldLog(Log.DEBUG))
+                         _log.debug("Got " + reply.size() + " nodes from " + from);
+                     for (NodeInfo ni : reply) {
+                         if (! (ni.equals(_myNodeInfo) || tried.contains(ni) || toTry.contains(ni)))
+                             toTry.add(ni);
+                     }
+                } else if (replyType == REPLY_NETWORK_FAIL) {
+                     failed = true;
+                } else {
                      if (_log.shouldLog(Log.INFO))
-                         _log.info("Finished get Peers, got " + rv.size() + " from DHT, returning " + reply.size());
-                     return rv;
-                 }
-            } else if (replyType == REPLY_NODES) {
-                 List<NodeInfo> reply = (List<NodeInfo>) waiter.getReplyObject();
-                 if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Got " + reply.size() + " nodes");
-                 for (NodeInfo ni : reply) {
-                     if (! (ni.equals(_myNodeInfo) || tried.contains(ni) || toTry.contains(ni)))
-                         toTry.add(ni);
-                 }
-            } else if (replyType == REPLY_NETWORK_FAIL) {
-                 break;
-            } else {
-                 if (_log.shouldLog(Log.INFO))
-                     _log.info("Got unexpected reply " + replyType + ": " + waiter.getReplyObject());
+                         _log.info("Got unexpected reply " + replyType + ": " + waiter.getReplyObject());
+                }
             }
-            if (_context.clock().now() > endTime)
+            if (failed || (peers != null && peers.size() >= maxPeers))
                 break;
         }
-        if (_log.shouldLog(Log.INFO))
-            _log.info("Finished get Peers, " + rv.size() + " from local and none from DHT");
-        return rv;
+        addLookupTime(_context.clock().now() - start);
+        return new ArrayList<NodeInfo>(replied);
+    }
+
+    /**
+     *  @return true if K nodes have replied and next is farther away than all of them
+     */
+    private static boolean isClosest(SortedSet<NodeInfo> replied, NodeInfo next, NodeInfoComparator comp) {
+        if (replied.size() < K)
+            return false;
+        Iterator<NodeInfo> iter = replied.iterator();
+        NodeInfo kth = null;
+        for (int i = 0; i < K; i++) {
+            kth = iter.next();
+        }
+        return comp.compare(next, kth) > 0;
     }
 
     /**
@@ -475,6 +493,9 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
      *  This also automatically announces ourself to our local tracker.
      *  For best results do a getPeers() first so we have tokens.
      *
+     *  The peers are announced to in parallel, first getting a token from
+     *  those we don't have one for.
+     *
      *  @param ih the Info Hash (torrent)
      *  @param max maximum number of peers to announce to
      *  @param maxWait the maximum total time to wait (ms) or 0 to do all in parallel and return immediately.
@@ -483,36 +504,74 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
     public int announce(byte[] ih, int max, long maxWait) {
         announce(ih);
         int rv = 0;
-        long start = _context.clock().now();
+        long endTime = _context.clock().now() + maxWait;
         InfoHash iHash = new InfoHash(ih);
         List<NodeInfo> nodes = _knownNodes.findClosest(iHash, max);
         if (_log.shouldLog(Log.INFO))
             _log.info("Found " + nodes.size() + " to announce to for " + iHash);
+        QuerySet queries = new QuerySet();
+        // the rest are get_peers for a token
+        Set<ReplyWaiter> announces = new HashSet<ReplyWaiter>();
         for (NodeInfo nInfo : nodes) {
             if (!_isRunning)
                 break;
-            if (announce(ih, nInfo, Math.min(maxWait, 60*1000)))
-                rv++;
-            maxWait -= _context.clock().now() - start;
-            if (maxWait < 1000)
-                break;
+            Token token = getToken(nInfo);
+            if (token != null) {
+                ReplyWaiter waiter = sendAnnouncePeer(nInfo, iHash, token);
+                if (waiter == null)
+                    continue;
+                if (maxWait <= 0) {
+                    rv++;
+                } else {
+                    queries.add(waiter);
+                    announces.add(waiter);
+                }
+            } else if (maxWait > 0) {
+                // we have no token, have to do a getPeers first to get a token
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("No token for announce to " + nInfo + ", sending get_peers first");
+                ReplyWaiter waiter = sendGetPeers(nInfo, iHash);
+                if (waiter != null)
+                    queries.add(waiter);
+            }
+        }
+        if (maxWait <= 0)
+            return rv;
+
+        while (_isRunning && (queries.inFlight() > 0 || queries.hasDone()) &&
+               _context.clock().now() < endTime) {
+            for (ReplyWaiter waiter : queries.waitForReplies(endTime)) {
+                int replyType = waiter.getReplyCode();
+                NodeInfo nInfo = waiter.getSentTo();
+                if (announces.contains(waiter)) {
+                    if (replyType == REPLY_PONG)
+                        rv++;
+                } else if (replyType == REPLY_PEERS || replyType == REPLY_NODES) {
+                    // we should have a token now
+                    Token token = getToken(nInfo);
+                    if (token == null) {
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("Huh? no token after get_peers in announce() succeeded to " + nInfo);
+                        continue;
+                    }
+                    ReplyWaiter announce = sendAnnouncePeer(nInfo, iHash, token);
+                    if (announce != null) {
+                        queries.add(announce);
+                        announces.add(announce);
+                    }
+                } else {
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Get_peers in announce() failed to " + nInfo);
+                }
+            }
         }
         return rv;
     }
 
     /**
-     *  Announce to a single DHT peer.
-     *  Blocking unless maxWait <= 0
-     *  Caller should run in a thread.
-     *  For best results do a getPeers() first so we have a token.
-     *
-     *  @param ih the Info Hash (torrent)
-     *  @param nInfo the peer to announce to
-     *  @param maxWait the maximum time to wait (ms) or 0 to return immediately.
-     *  @return success
+     *  @return an unexpired token we got from the node, or null
      */
-    private boolean announce(byte[] ih, NodeInfo nInfo, long maxWait) {
-        InfoHash iHash = new InfoHash(ih);
+    private Token getToken(NodeInfo nInfo) {
         // it isn't clear from BEP 5 if a token is bound to a single infohash?
         // for now, just bind to the NID
         //TokenKey tokenKey = new TokenKey(nInfo.getNID(), iHash);
@@ -521,55 +580,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             // too old, cleaner will get it soon
             token = null;
         }
-        if (token == null) {
-            // we have no token, have to do a getPeers first to get a token
-            if (maxWait <= 0)
-                return false;
-            if (_log.shouldLog(Log.INFO))
-                _log.info("No token for announce to " + nInfo + ", sending get_peers first");
-            ReplyWaiter waiter = sendGetPeers(nInfo, iHash);
-            if (waiter == null)
-                return false;
-            long start = _context.clock().now();
-            synchronized(waiter) {
-                try {
-                    waiter.wait(maxWait);
-                } catch (InterruptedException ie) {}
-            }
-            int replyType = waiter.getReplyCode();
-            if (!(replyType == REPLY_PEERS || replyType == REPLY_NODES)) {
-                if (_log.shouldLog(Log.INFO))
-                    _log.info("Get_peers in announce() failed to " + nInfo);
-                return false;
-            }
-            // we should have a token now
-            token = _incomingTokens.get(nInfo.getNID());
-            if (token == null || token.lastSeen() < _context.clock().now() - MAX_INBOUND_TOKEN_AGE) {
-                if (_log.shouldLog(Log.INFO))
-                    _log.info("Huh? no token after get_peers in announce() succeeded to " + nInfo);
-                return false;
-            }
-            maxWait -= _context.clock().now() - start;
-            if (maxWait < 1000) {
-                if (_log.shouldLog(Log.INFO))
-                    _log.info("Ran out of time after get_peers in announce() succeeded to " + nInfo);
-                return false;
-            }
-        }
-
-        // send and wait on rcv msg lock unless maxWait <= 0
-        ReplyWaiter waiter = sendAnnouncePeer(nInfo, iHash, token);
-        if (waiter == null)
-            return false;
-        if (maxWait <= 0)
-            return true;
-        synchronized(waiter) {
-            try {
-                waiter.wait(maxWait);
-            } catch (InterruptedException ie) {}
-        }
-        int replyType = waiter.getReplyCode();
-        return replyType == REPLY_PONG;
+        return token;
     }
 
     /**
@@ -648,7 +659,10 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
                    "Blacklisted: ").append(_blacklist.size()).append("<br>" +
                    "Sent tokens: ").append(_outgoingTokens.size()).append("<br>" +
                    "Rcvd tokens: ").append(_incomingTokens.size()).append("<br>" +
-                   "Pending queries: ").append(_sentQueries.size()).append("<br>");
+                   "Pending queries: ").append(_sentQueries.size()).append("<br>" +
+                   "Lookup time: ").append(getLookupTime(50)).append(" ms median / ")
+           .append(getLookupTime(90)).append(" ms 90% / ")
+           .append(getLookupTime(99)).append(" ms 99%<br>");
         _tracker.renderStatusHTML(buf);
         _knownNodes.renderStatusHTML(buf);
         return buf.toString();
@@ -1316,7 +1330,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             List<Hash> rlist = receivePeers(nInfo, peers);
             waiter.gotReply(REPLY_PEERS, rlist);
         } else if (_customQueryHandler != null && response.size() > 1) {
-            _customQueryHandler.receiveResponse(response);
+            _customQueryHandler.receiveResponse(nInfo, response);
         } else {
             // a ping response or an announce peer response
             byte[] nid = response.get("id").getBytes();
@@ -1402,6 +1416,134 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         waiter.gotReply(errorCode, errorString);
     }
 
+    /**
+     *  Record a round trip time for the node and for the network as a whole.
+     */
+    private void addRTT(NodeInfo nInfo, int rtt) {
+        nInfo.getNID().addRTT(rtt);
+        synchronized (_netRTT) {
+            _netRTT.addRTT(rtt);
+        }
+    }
+
+    /**
+     *  How long a lookup waits for the node before going on to the next.
+     *  From the node's round trip times, or the network's if we haven't heard from it.
+     */
+    private long getLookupTimeout(NodeInfo nInfo) {
+        NodeInfo known = _knownNodes.get(nInfo.getNID());
+        NID nid = known != null ? known.getNID() : nInfo.getNID();
+        long rtt = nid.getRTT();
+        long dev = nid.getRTTDev();
+        if (rtt <= 0) {
+            synchronized (_netRTT) {
+                rtt = _netRTT.getRTT();
+                dev = _netRTT.getRTTDev();
+            }
+        }
+        if (rtt <= 0)
+            return DEFAULT_LOOKUP_TIMEOUT;
+        return Math.max(MIN_LOOKUP_TIMEOUT, Math.min(MAX_LOOKUP_TIMEOUT, rtt + (4 * dev)));
+    }
+
+    private void addLookupTime(long time) {
+        _context.statManager().addRateData(STAT_LOOKUP_TIME, time);
+        synchronized (_lookupTimes) {
+            _lookupTimes[_lookupCount++ % _lookupTimes.length] = time;
+        }
+    }
+
+    /**
+     *  @param percent 0-100
+     *  @return the percentile of the recent lookup times (ms), or 0 if none
+     */
+    private long getLookupTime(int percent) {
+        long[] times;
+        synchronized (_lookupTimes) {
+            times = Arrays.copyOf(_lookupTimes, Math.min(_lookupCount, _lookupTimes.length));
+        }
+        if (times.length <= 0)
+            return 0;
+        Arrays.sort(times);
+        return times[((times.length - 1) * percent) / 100];
+    }
+
+    /**
+     *  The queries a lookup or announce is waiting on.
+     *  A query is in flight until it gets a reply or runs past its
+     *  node's lookup timeout. After that it no longer holds up the lookup,
+     *  but a reply that comes in while we are waiting on others is still used.
+     */
+    private class QuerySet {
+        private final List<ReplyWaiter> _waiters = new ArrayList<ReplyWaiter>();
+
+        public synchronized void add(ReplyWaiter waiter) {
+            waiter.setDeadline(_context.clock().now() + getLookupTimeout(waiter.getSentTo()));
+            waiter.setQuerySet(this);
+            _waiters.add(waiter);
+        }
+
+        /**
+         *  @return how many haven't replied and are within their lookup timeout
+         */
+        public synchronized int inFlight() {
+            long now = _context.clock().now();
+            int rv = 0;
+            for (ReplyWaiter waiter : _waiters) {
+                if (!waiter.isDone() && waiter.getDeadline() > now)
+                    rv++;
+            }
+            return rv;
+        }
+
+        /**
+         *  @return true if a query got a reply or failed, late or not, and hasn't been removed
+         */
+        public synchronized boolean hasDone() {
+            for (ReplyWaiter waiter : _waiters) {
+                if (waiter.isDone())
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         *  Waits until a query gets a reply, fails, or runs past its lookup timeout,
+         *  or until endTime.
+         *  @return the queries that got a reply or failed, now removed, possibly empty
+         */
+        public synchronized List<ReplyWaiter> waitForReplies(long endTime) {
+            List<ReplyWaiter> rv = removeDone();
+            if (!rv.isEmpty())
+                return rv;
+            long now = _context.clock().now();
+            long next = endTime;
+            for (ReplyWaiter waiter : _waiters) {
+                long deadline = waiter.getDeadline();
+                if (deadline > now && deadline < next)
+                    next = deadline;
+            }
+            if (next > now) {
+                try {
+                    wait(next - now);
+                } catch (InterruptedException ie) {}
+            }
+            return removeDone();
+        }
+
+        private List<ReplyWaiter> removeDone() {
+            List<ReplyWaiter> rv = new ArrayList<ReplyWaiter>(4);
+            for (Iterator<ReplyWaiter> iter = _waiters.iterator(); iter.hasNext(); ) {
+                ReplyWaiter waiter = iter.next();
+                if (waiter.isDone()) {
+                    iter.remove();
+                    rv.add(waiter);
+                }
+            }
+            return rv;
+        }
+    }
+
     /**
      * Callback for replies
      */
@@ -1410,7 +1552,11 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
         private final NodeInfo sentTo;
         private final Runnable onReply;
         private final Runnable onTimeout;
+        private final long sentTime;
         private volatile int replyCode;
+        private volatile boolean timedOut;
+        private volatile long deadline;
+        private volatile QuerySet querySet;
         private Object sentObject;
         private Object replyObject;
 
@@ -1427,6 +1573,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             this.sentTo = nInfo;
             this.onReply = onReply;
             this.onTimeout = onTimeout;
+            this.sentTime = _context.clock().now();
         }
 
         public NodeInfo getSentTo() {
@@ -1462,6 +1609,36 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             return replyCode;
         }
 
+        /**
+         *  @return true if we got a reply, it timed out, or the network failed
+         */
+        public boolean isDone() {
+            return replyCode != REPLY_NONE || timedOut;
+        }
+
+        /** when a lookup stops waiting for this */
+        public void setDeadline(long time) {
+            deadline = time;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /** to be notified along with this */
+        public void setQuerySet(QuerySet qs) {
+            querySet = qs;
+        }
+
+        private void notifyQuerySet() {
+            QuerySet qs = querySet;
+            if (qs != null) {
+                synchronized(qs) {
+                    qs.notifyAll();
+                }
+            }
+        }
+
         /**
          *  Will notify this and run onReply.
          *  Also removes from _sentQueries and calls heardFrom().
@@ -1472,13 +1649,16 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             replyObject = o;
             replyCode = code;
             // if it is fake, heardFrom is called by receivePong()
-            if (!sentTo.getNID().equals(FAKE_NID))
-                heardFrom(sentTo);
+            if (!sentTo.getNID().equals(FAKE_NID)) {
+                NodeInfo nInfo = heardFrom(sentTo);
+                addRTT(nInfo, (int) (_context.clock().now() - sentTime));
+            }
             if (onReply != null)
                 onReply.run();
             synchronized(this) {
                 this.notifyAll();
             }
+            notifyQuerySet();
         }
 
         /** timer callback on timeout */
@@ -1489,9 +1669,11 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             timeout(sentTo);
             if (_log.shouldLog(Log.INFO))
                 _log.warn("timeout waiting for reply from " + sentTo);
+            timedOut = true;
             synchronized(this) {
                 this.notifyAll();
             }
+            notifyQuerySet();
         }
 
         /**
@@ -1504,6 +1686,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             synchronized(this) {
                 this.notifyAll();
             }
+            notifyQuerySet();
         }
     }
 
@@ -1654,7 +1837,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
             if (!_hasBootstrapped) {
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Bootstrap start, size: " + _knownNodes.size());
-                explore(_myNID, 8, 60*1000, 1);
+                explore(_myNID, 8, 2*60*1000);
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Bootstrap done, size: " + _knownNodes.size());
                 _hasBootstrapped = true;
@@ -1665,7 +1848,7 @@ public class KRPC implements I2PSessionMuxedListener, DHT {
                 _log.info("Explore start. size: " + _knownNodes.size());
             List<NID> keys = _knownNodes.getExploreKeys();
             for (NID nid : keys) {
-                explore(nid, 8, 60*1000, 1);
+                explore(nid, 8, 60*1000);
                 if (!_isRunning)
                     return;
             }
@@ -17,6 +17,9 @@ public class NID extends SHA1Hash {
 
     private long lastSeen;
     private int fails;
+    /** smoothed round trip time and its mean deviation, ms, 0 if unknown */
+    private int rtt;
+    private int rttDev;
 
     private static final int MAX_FAILS = 2;
 
@@ -43,4 +46,31 @@ public class NID extends SHA1Hash {
     public boolean timeout() {
         return ++fails > MAX_FAILS;
     }
+
+    /**
+     *  Add a round trip time sample, smoothed as in TCP (RFC 6298)
+     */
+    public void addRTT(int sample) {
+        if (rtt <= 0) {
+            rtt = sample;
+            rttDev = sample / 2;
+        } else {
+            rttDev = ((3 * rttDev) + Math.abs(rtt - sample)) / 4;
+            rtt = ((7 * rtt) + sample) / 8;
+        }
+    }
+
+    /**
+     *  @return smoothed round trip time (ms) or 0 if unknown
+     */
+    public int getRTT() {
+        return rtt;
+    }
+
+    /**
+     *  @return mean deviation of the round trip time (ms)
+     */
+    public int getRTTDev() {
+        return rttDev;
+    }
 }
@@ -49,6 +49,7 @@ var doAction = function(url, confirmStr) {
 			toggleFav(params);
 			break;
 		case 'fav':
+		case 'search':
 			window.location = 'c?' + url;
 			break;
 		case 'tag':
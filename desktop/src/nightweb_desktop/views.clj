@@ -16,7 +16,9 @@
       (let [active-tab (or (:subtype params) (:type params))]
         [:li {:class (when (= active-tab (:type button)) "active")}
          [:a {:href (f/url-encode (if (:subtype params)
-                                    (assoc params :subtype (:type button))
+                                    (-> params
+                                        (dissoc :page :cursor)
+                                        (assoc :subtype (:type button)))
                                     button)
                                 (if show-me-tab? "/?" "/c?"))}
           (:title button)]]))))
@@ -0,0 +1,72 @@
+(ns nightweb.db-test
+  (:require [clojure.java.io :as java.io]
+            [clojure.java.jdbc :as jdbc]
+            [clojure.test :refer :all]
+            [nightweb.constants :as c]
+            [nightweb.db :as db]
+            [nightweb.formats :as f]))
+
+; feed queries
+
+(def user-hash (.getBytes "userhash-aaaaaaaaaaa"))
+
+(defn feed-calls
+  "Calls each feed query the way the UI does, first and later pages."
+  []
+  (let [cursor (str (.getTime (java.util.Date.)) "."
+                    (f/base32-encode user-hash))]
+    (doseq [page [{} {:page 2} {:cursor cursor}]]
+      (db/get-post-data (merge {:userhash user-hash} page))
+      (doseq [params [{:type :user}
+                      {:type :user :tag "tag"}
+                      {:type :post}
+                      {:type :post :tag "tag"}
+                      {:type :fav :subtype :user :userhash user-hash}
+                      {:type :fav :subtype :post :userhash user-hash}
+                      {:type :tag :subtype :user}
+                      {:type :tag :subtype :post}]]
+        (db/get-category-data (merge params page))))
+    (db/get-single-user-data {:userhash user-hash})
+    (db/get-single-post-data {:userhash user-hash :time 1})
+    (db/get-single-fav-data {:userhash user-hash} user-hash)
+    (db/get-fav-data {:ptrhash user-hash} user-hash)
+    (db/get-single-tag-data {:type :user :tag "tag"})
+    (db/get-single-tag-data {:type :post :tag "tag"})
+    (db/get-pic-data {:userhash user-hash :pichash user-hash})
+    (db/get-pic-data {:userhash user-hash} 1 true)
+    (db/count-followers user-hash [user-hash])
+    (db/count-follows user-hash [user-hash])
+    (db/get-followed-hashes user-hash)))
+
+(defn capture-queries
+  "Returns the SQL and params of every query run by func."
+  [func]
+  (let [queries (atom [])
+        with-query-results* jdbc/with-query-results*]
+    (with-redefs [jdbc/with-query-results*
+                  (fn [sql-params body]
+                    (swap! queries conj sql-params)
+                    (with-query-results* sql-params body))]
+      (func))
+    @queries))
+
+(defn explain
+  [[sql & params]]
+  (db/with-connection
+    (jdbc/with-query-results
+      rs
+      (vec (cons (str "EXPLAIN " sql) params))
+      (str (first (vals (first rs)))))))
+
+(deftest feed-queries-use-indexes
+  (let [dir (java.io/file (System/getProperty "java.io.tmpdir")
+                          (str "nwdbtest-" (System/currentTimeMillis)))]
+    (.mkdirs (java.io/file dir c/nw-dir))
+    (db/init-db (.getCanonicalPath dir))
+    (reset! c/my-hash-bytes user-hash)
+    (let [queries (capture-queries feed-calls)]
+      (is (seq queries))
+      (doseq [query queries]
+        (let [plan (explain query)]
+          (is (not (.contains plan "tableScan"))
+              (str "table scan in plan:\n" plan)))))))